@@ -6,7 +6,7 @@ set -eux
 rm -rf bin
 mkdir -p bin
 
-javac -cp .:lib/JSAP-2.1.jar -d bin src/edu/cmu/ark/util/LineChunkReader.java src/edu/cmu/ark/DiscriminativeTagger.java src/edu/cmu/ark/LabeledSentence.java src/edu/cmu/ark/ArabicFeatureExtractor.java
+javac -cp .:lib/JSAP-2.1.jar -d bin src/edu/cmu/ark/util/LineChunkReader.java src/edu/cmu/ark/util/SegmentedLRUCache.java src/edu/cmu/ark/util/MappedIntReader.java src/edu/cmu/ark/util/PrefetchingIterator.java src/edu/cmu/ark/util/TabSeparatedParser.java src/edu/cmu/ark/util/ParallelGzipInputStream.java src/edu/cmu/ark/DiscriminativeTagger.java src/edu/cmu/ark/PerceptronWeights.java src/edu/cmu/ark/HybridWeights.java src/edu/cmu/ark/ChunkedWeights.java src/edu/cmu/ark/TrainingCheckpoint.java src/edu/cmu/ark/DevEvaluator.java src/edu/cmu/ark/ParameterSweep.java src/edu/cmu/ark/CrossValidation.java src/edu/cmu/ark/BinaryFeatureFile.java src/edu/cmu/ark/ParallelLoader.java src/edu/cmu/ark/SparseDelta.java src/edu/cmu/ark/DistributedTraining.java src/edu/cmu/ark/CompiledCorpus.java src/edu/cmu/ark/LabeledSentence.java src/edu/cmu/ark/ArabicFeatureExtractor.java
 
 cd bin
 echo "Main-Class: edu.cmu.ark.DiscriminativeTagger
@@ -0,0 +1,34 @@
+#!/bin/bash
+# Reports training throughput and final dev-set F1 for the sequential perceptron 
+# and for Hogwild training with 1, 2, 4, 8 and 16 threads. (With 1 thread, --hogwild 
+# runs the shared-weight code path, so hogwild-1 measures its overhead against sequential.)
+# Usage: ./scaling.sh <labels file> <training feature file> <dev feature file> [iterations] [extra tagger options]
+# (run from the eval/ directory; any extra options, e.g. --properties, are passed to every run)
+
+set -eu
+
+LABELS=$1
+TRAIN=$2
+DEV=$3
+ITERS=${4:-5}
+shift 3; shift || true
+EXTRA="$@"
+
+TAGGER=${TAGGER:-"java -Xmx8000m -XX:+UseCompressedOops -jar ../arabic-tagger.jar"}
+
+run() {
+	# $1: description; remaining arguments: options for the tagger
+	local desc=$1; shift
+	local log=$(mktemp)
+	$TAGGER --labels $LABELS --train $TRAIN --test $DEV --iters $ITERS "$@" $EXTRA 2> $log > /dev/null
+	local rate=$(grep '^training time:' $log | sed 's/.*(\(.*\) instances\/s)/\1/')
+	local f1=$(grep '^all' $log | tail -1 | cut -f3)
+	echo -e "$desc\t$rate\t$f1"
+	rm $log
+}
+
+echo -e "mode\tinstances/s\tF1"
+run "sequential" --threads 1
+for N in 1 2 4 8 16; do
+	run "hogwild-$N" --threads $N --hogwild
+done
@@ -41,7 +41,7 @@ public class ArabicFeatureExtractor {
 
 	Set<Integer> excludeFeatNums = new HashSet<Integer>();
 
-	private ArabicFeatureExtractor(JSAPResult opts){
+	ArabicFeatureExtractor(JSAPResult opts){
 		
 		usePrevLabel = opts.getBoolean("usePrevLabel");
 		
@@ -98,6 +98,14 @@ public class ArabicFeatureExtractor {
 	 */
 	public double[] extractZeroOrderFeatureValues(LabeledSentence sent, int j, Map<String,Integer> featureIndexes, 
 		int[][] relevantFeatureIndices, boolean usePredictedLabels, boolean addNewFeatures) {
+		return indexFeatures(extractZeroOrderFeatureMap(sent, j), featureIndexes, relevantFeatureIndices, addNewFeatures);
+	}
+	
+	/**
+	 * The names and values of the zero-order features of token j (see extractZeroOrderFeatureValues()). 
+	 * They do not depend on the feature index, so they can be extracted once for several models.
+	 */
+	Map<String,Double> extractZeroOrderFeatureMap(LabeledSentence sent, int j) {
 		
 		// feature names -> values
 		Map<String, Double> featureMap = new HashMap<String, Double>();
@@ -159,23 +167,32 @@ public class ArabicFeatureExtractor {
 			}
 		}
 		
-		if (!addNewFeatures) {	// remove any new features (not already in the vocabulary)
-			for (Iterator<Map.Entry<String, Double>> it = featureMap.entrySet().iterator(); it.hasNext();) {
-				Map.Entry<String, Double> entry = it.next();
-				if (!featureIndexes.containsKey(entry.getKey())) {
-					it.remove();
-				}
-			}
-		}
-
+		return featureMap;
+	}
+	
+	/**
+	 * Converts feature names to (lifted) feature indices: sets relevantFeatureIndices[0] to the indices 
+	 * and returns the parallel array of values. The feature map is not modified.
+	 * @param addNewFeatures Whether to index features that do not already have an index, rather than omitting them
+	 */
+	static double[] indexFeatures(Map<String,Double> featureMap, Map<String,Integer> featureIndexes, 
+		int[][] relevantFeatureIndices, boolean addNewFeatures) {
+		int n = 0;
+		for (String name : featureMap.keySet())
+			if (addNewFeatures || featureIndexes.containsKey(name)) n++;
+		
 		// convert feature names to offsets
-		relevantFeatureIndices[0] = new int[featureMap.size()];
-		double[] featureVals = new double[featureMap.size()];
+		relevantFeatureIndices[0] = new int[n];
+		double[] featureVals = new double[n];
 		int q=0;
 		for (Map.Entry<String,Double> item : featureMap.entrySet()) {
-			if (!featureIndexes.containsKey(item.getKey()))
-				featureIndexes.put(item.getKey(), featureIndexes.size());
-			relevantFeatureIndices[0][q] = featureIndexes.get(item.getKey());
+			Integer index = featureIndexes.get(item.getKey());
+			if (index==null) {
+				if (!addNewFeatures) continue;	// not already in the vocabulary
+				index = featureIndexes.size();
+				featureIndexes.put(item.getKey(), index);
+			}
+			relevantFeatureIndices[0][q] = index;
 			featureVals[q] = item.getValue();
 			q++;
 		}
@@ -183,6 +200,35 @@ public class ArabicFeatureExtractor {
 		return featureVals;
 	}
 	
+	/**
+	 * Builds a key identifying everything that {@link #extractZeroOrderFeatureValues} reads
+	 * for token j: the current and two previous token strings, the current token's feature
+	 * columns, and the previous token's MADA columns. Two tokens with equal keys have identical
+	 * zero-order features, so the key can be used to cache their scores during decoding.
+	 */
+	public String zeroOrderContextKey(LabeledSentence sent, int j) {
+		List<String>[] features = sent.getFeatures();
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(Math.min(j,2));	// distinguishes sentence-initial contexts
+		if (!unlexicalized) {
+			List<String> toks = sent.getTokens();
+			sb.append('\t').append(toks.get(j));
+			if (j>0) sb.append('\t').append(toks.get(j-1));
+			if (j>1) sb.append('\t').append(toks.get(j-2));
+		}
+		for (int f=0; f<features.length; f++) {
+			if (excludeFeatNums.contains(f)) continue;
+			sb.append('\t').append(features[f].get(j));
+		}
+		if (j>0) {
+			for (int i=13; i<25; i++) {
+				if (excludeFeatNums.contains(i)) continue;
+				sb.append('\t').append(features[i].get(j-1));
+			}
+		}
+		return sb.toString();
+	}
+
 	public int[] extractFirstOrderFeatures(LabeledSentence sent, int j, Map<String,Integer> featureIndexes, 
 		boolean usePredictedLabels, boolean addNewFeatures) {
 		// previous label feature (first-order); assuming just one of these for any given token
@@ -0,0 +1,109 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.*;
+import java.util.*;
+
+import edu.cmu.ark.util.LineChunkReader;
+import edu.cmu.ark.util.TabSeparatedParser;
+
+/**
+ * Converts feature files from the text format to the binary format (--binarize), so that they
+ * can be read without parsing text (--binary). Each column of a text line (the token, its
+ * features, and its label) becomes the index of its string in a string vocabulary, plus
+ * {@link LineChunkReader#BINARY_OFFSET}; the value 10 ends a line, so an empty line
+ * (two consecutive 10s) ends a sentence.
+ *
+ * The vocabulary is a text file with one string per line, the line number (from 0) being its
+ * index. Files that are to be used together (e.g., training and test data) must be converted
+ * with the same vocabulary: converting a file with an existing vocabulary file adds any new
+ * strings to it, keeping the indices of the others.
+ */
+class BinaryFeatureFile {
+
+	/**
+	 * Converts each text feature file to a binary feature file with the same path plus ".bin",
+	 * adding its strings to the vocabulary file (which is created if it does not exist).
+	 */
+	static void binarize(String[] paths, String vocabPath) throws IOException {
+		List<String> strings = new ArrayList<String>();
+		Map<String,Integer> indices = new HashMap<String,Integer>();
+		if (new File(vocabPath).exists()) {
+			for (String s : readVocabulary(vocabPath)) {
+				indices.put(s, strings.size());
+				strings.add(s);
+			}
+			System.err.println("extending the vocabulary of "+strings.size()+" strings in "+vocabPath);
+		}
+
+		for (String path : paths) {
+			System.err.print("converting "+path+" to "+path+".bin");
+			long startTime = System.currentTimeMillis();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path+".bin"), 1<<16));
+			LineChunkReader rdr = new LineChunkReader(new File(path));
+			rdr.setParser(new TabSeparatedParser(null));	// as in FeatureFileReader
+			int nSent = 0;
+			List<String[]> chunk;
+			while ((chunk = rdr.readColumnChunk())!=null) {
+				for (String[] parts : chunk) {
+					if (parts.length<37)
+						throw new RuntimeException("Feature file line has too few ("+parts.length+") columns (is the label missing?): "+Arrays.toString(parts));
+					for (String part : parts) {
+						Integer index = indices.get(part);
+						if (index==null) {
+							index = strings.size();
+							indices.put(part, index);
+							strings.add(part);
+						}
+						out.writeInt(index+LineChunkReader.BINARY_OFFSET);
+					}
+					out.writeInt(10);
+				}
+				out.writeInt(10);	// end of sentence
+				if (nSent%1000==0) System.err.print(".");
+				nSent++;
+			}
+			rdr.close();
+			out.close();
+			System.err.println(" done with "+nSent+" sentences in "+(System.currentTimeMillis()-startTime)/1000.0+" s");
+		}
+
+		writeVocabulary(strings, vocabPath);
+		System.err.println("wrote the vocabulary of "+strings.size()+" strings to "+vocabPath);
+	}
+
+	static String[] readVocabulary(String vocabPath) throws IOException {
+		List<String> strings = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(vocabPath), "UTF-8"));
+		String ln;
+		while ((ln = br.readLine())!=null)
+			strings.add(ln);
+		br.close();
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	private static void writeVocabulary(List<String> strings, String vocabPath) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(vocabPath), "UTF-8"));
+		for (String s : strings) {
+			out.write(s);
+			out.write('\n');
+		}
+		out.close();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.Serializable;
+import java.text.NumberFormat;
+
+/**
+ * Dense weight vector indexed by long, stored in fixed-size chunks, for models with more
+ * (labels x lifted features) weights than fit in a single Java array. The layout of grounded
+ * indices is the standard one (see DiscriminativeTagger.getGroundedFeatureIndex()).
+ *
+ * Like {@link PerceptronWeights}, the vector can keep the running sums needed for lazy averaging
+ * during training; {@link #averaged()} then produces the (non-training) weight vector of the model.
+ */
+class ChunkedWeights implements DiscriminativeTagger.TrainableWeights, Serializable {
+	private static final long serialVersionUID = -2290741605317387516L;
+
+	/** the largest number of elements a Java array can reliably hold */
+	static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;
+
+	static final int CHUNK_BITS = 27;	// 2^27 doubles = 1 GB per chunk
+	private static final int CHUNK_SIZE = 1<<CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE-1;
+
+	private final int numFeatures;
+	private final int numLabels;
+	private final long length;
+	private final double[][] chunks;
+
+	// running sums for averaging (training only)
+	private transient double[][] summed;
+	private transient int[][] lastUpdated;
+	private transient int timestep = 0;
+
+	ChunkedWeights(int numFeatures, int numLabels, boolean averaging) {
+		this.numFeatures = numFeatures;
+		this.numLabels = numLabels;
+		length = (long)numFeatures*numLabels;
+		int nChunks = (int)((length+CHUNK_SIZE-1) >>> CHUNK_BITS);
+		chunks = new double[nChunks][];
+		if (averaging) {
+			summed = new double[nChunks][];
+			lastUpdated = new int[nChunks][];
+		}
+		for (int c=0; c<nChunks; c++) {
+			int size = (int)Math.min(CHUNK_SIZE, length - ((long)c<<CHUNK_BITS));
+			chunks[c] = new double[size];
+			if (averaging) {
+				summed[c] = new double[size];
+				lastUpdated[c] = new int[size];
+			}
+		}
+	}
+
+	/** Whether a vector of the given length can be stored in a single array. */
+	static boolean fitsInArray(long length) {
+		return length <= MAX_ARRAY_SIZE;
+	}
+
+	long length() { return length; }
+
+	double get(long index) {
+		return chunks[(int)(index >>> CHUNK_BITS)][(int)(index & CHUNK_MASK)];
+	}
+
+	public double get(int liftedFeature, int label) {
+		return get(liftedFeature + (long)label*numFeatures);
+	}
+
+	/** Adds delta to the weight at index, counting it from the current instance onward. */
+	public void add(long index, double delta) {
+		int c = (int)(index >>> CHUNK_BITS);
+		int i = (int)(index & CHUNK_MASK);
+		if (summed!=null) {
+			summed[c][i] += chunks[c][i] * (timestep - lastUpdated[c][i]);
+			lastUpdated[c][i] = timestep;
+		}
+		chunks[c][i] += delta;
+	}
+
+	/** Marks the end of a training instance. */
+	public void endInstance() {
+		if (timestep==Integer.MAX_VALUE)
+			throw new RuntimeException("ChunkedWeights: too many training instances for averaging");
+		timestep++;
+	}
+
+	/**
+	 * The weights of the model: the average over all timesteps if averaging (and any instances
+	 * have been processed), else a copy of the current weights.
+	 */
+	public ChunkedWeights averaged() {
+		boolean avg = (summed!=null && timestep>0);
+		ChunkedWeights res = new ChunkedWeights(numFeatures, numLabels, false);
+		for (int c=0; c<chunks.length; c++) {
+			double[] cur = chunks[c];
+			double[] out = res.chunks[c];
+			for (int i=0; i<cur.length; i++)
+				out[i] = (avg) ? (summed[c][i] + cur[i]*(timestep-lastUpdated[c][i])) / timestep : cur[i];
+		}
+		return res;
+	}
+
+	public String toString() {
+		NumberFormat nf = NumberFormat.getInstance();
+		nf.setMaximumFractionDigits(2);
+		return length+" weights in "+chunks.length+" chunk(s); ~"+nf.format(8.0*length/1048576.0)+" MB";
+	}
+}
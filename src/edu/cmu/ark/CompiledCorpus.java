@@ -0,0 +1,223 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.*;
+import java.util.*;
+
+import edu.cmu.ark.util.LineChunkReader;
+import edu.cmu.ark.util.MappedIntReader;
+
+/**
+ * Training data compiled to zero-order feature indices and label indices, so that passes over
+ * the data after the first need neither text parsing nor feature extraction.
+ *
+ * The compiled sentences are written to a binary file as they are added; as many of them as
+ * fit in the given memory budget are also kept in memory. Iteration yields the resident
+ * sentences, then streams the rest from the file through memory mapping--unless the corpus has been
+ * shuffled, in which case resident and file-backed sentences are interleaved in a random order
+ * (the latter are located through an index of their offsets in the file).
+ *
+ * File format (big-endian 4-byte integers): for each sentence, the number of tokens,
+ * then for each token its label index, number of features, and feature indices.
+ */
+class CompiledCorpus implements Iterable<LabeledSentence> {
+	private final File _f;
+	private final List<String> _lbls;
+	private DataOutputStream _out;
+
+	private final long _budget;	// bytes
+	private long _residentBytes = 0;
+	private final List<LabeledSentence> _resident = new ArrayList<LabeledSentence>();
+	private long _streamStart = -1;	// file offset of the first sentence that is not resident
+	private long _fileBytes = 0;
+	private int _size = 0;
+	private int[] _featureMap = null;	// applied to feature indices read from the file
+	private long[] _offsets = new long[1024];	// file offset of each sentence
+	private int[] _order = null;	// sentence numbers in the order of iteration (null: resident sentences first, then the file)
+
+	/**
+	 * @param file: where to write the compiled data
+	 * @param labels: label types (label indices refer to this list)
+	 * @param memoryBudget: approximate maximum number of bytes of compiled sentences to keep in memory
+	 */
+	CompiledCorpus(File file, List<String> labels, long memoryBudget) throws IOException {
+		_f = file;
+		_lbls = labels;
+		_budget = memoryBudget;
+		_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+	}
+
+	/**
+	 * Adds a sentence given the zero-order feature indices of each token.
+	 * All of these features are assumed to have the value 1.
+	 */
+	void add(LabeledSentence sent, List<int[]> tokenFeatures) throws IOException {
+		int n = sent.length();
+		long bytes = 4;
+		_out.writeInt(n);
+		for (int i=0; i<n; i++) {
+			int[] feats = tokenFeatures.get(i);
+			_out.writeInt(_lbls.indexOf(sent.getLabels().get(i)));
+			_out.writeInt(feats.length);
+			for (int f : feats)
+				_out.writeInt(f);
+			bytes += 8 + 4*feats.length;
+		}
+
+		long inMemoryBytes = 2*bytes + 64*n + 128;	// rough estimate including object overhead
+		if (_streamStart<0 && _residentBytes+inMemoryBytes<=_budget) {
+			LabeledSentence compiled = new LabeledSentence();
+			for (int i=0; i<n; i++)
+				compiled.addCompiledToken(tokenFeatures.get(i), sent.getLabels().get(i));
+			_resident.add(compiled);
+			_residentBytes += inMemoryBytes;
+		}
+		else if (_streamStart<0)
+			_streamStart = _fileBytes;
+		if (_size==_offsets.length) _offsets = Arrays.copyOf(_offsets, 2*_size);
+		_offsets[_size] = _fileBytes;
+		_fileBytes += bytes;
+		_size++;
+	}
+
+	/** Must be called after the last sentence has been added. */
+	void finish() throws IOException {
+		_out.close();
+		_out = null;
+		if (_streamStart<0) _streamStart = _fileBytes;
+		System.err.println("compiled corpus: "+_size+" sentences, "+_fileBytes+" bytes in "+_f+"; "
+			+_resident.size()+" sentences resident in memory (~"+(_residentBytes>>20)+" MB)");
+	}
+
+	int size() { return _size; }
+
+	/**
+	 * Randomizes the order of iteration, in blocks of blockSize sentences that are adjacent 
+	 * in the corpus (see {@link LineChunkReader#blockShuffledOrder(int, int, Random)}).
+	 */
+	void shuffle(Random rgen, int blockSize) {
+		_order = LineChunkReader.blockShuffledOrder(_size, blockSize, rgen);
+	}
+
+	/**
+	 * Renumbers the features of all sentences: feature index f becomes featureMap[f].
+	 * (Used when a worker in distributed training adopts the global feature index.)
+	 */
+	void remapFeatures(int[] featureMap) {
+		for (LabeledSentence sent : _resident)
+			for (int[] feats : sent.getCompiledFeatures())
+				for (int h=0; h<feats.length; h++)
+					feats[h] = featureMap[feats[h]];
+		if (_featureMap!=null) {
+			int[] composed = new int[_featureMap.length];
+			for (int f=0; f<composed.length; f++)
+				composed[f] = featureMap[_featureMap[f]];
+			featureMap = composed;
+		}
+		_featureMap = featureMap;
+	}
+
+	public Iterator<LabeledSentence> iterator() {
+		if (_out!=null) throw new IllegalStateException("CompiledCorpus.iterator(): finish() has not been called");
+		if (_order!=null) return shuffledIterator();
+		final Iterator<LabeledSentence> residentIt = _resident.iterator();
+		MappedIntReader r = null;
+		try {
+			if (_streamStart<_fileBytes)
+				r = new MappedIntReader(_f, _streamStart, _fileBytes, MappedIntReader.DEFAULT_WINDOW);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		final MappedIntReader rdr = r;
+
+		return new Iterator<LabeledSentence>() {
+			public boolean hasNext() {
+				return residentIt.hasNext() || (rdr!=null && rdr.hasNext());
+			}
+			public LabeledSentence next() {
+				if (residentIt.hasNext()) return residentIt.next();
+				if (rdr==null || !rdr.hasNext()) throw new NoSuchElementException();
+				LabeledSentence sent = readSentence(rdr);
+				if (!rdr.hasNext()) rdr.close();
+				return sent;
+			}
+			public void remove() {
+				throw new UnsupportedOperationException("CompiledCorpus.iterator().remove() not supported");
+			}
+		};
+	}
+
+	private Iterator<LabeledSentence> shuffledIterator() {
+		final int[] order = _order;
+		MappedIntReader r = null;
+		try {
+			if (_streamStart<_fileBytes)
+				r = new MappedIntReader(_f, _streamStart, _fileBytes, MappedIntReader.DEFAULT_WINDOW);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		final MappedIntReader rdr = r;
+
+		return new Iterator<LabeledSentence>() {
+			private int _i = 0;
+			public boolean hasNext() {
+				if (_i<order.length) return true;
+				if (rdr!=null) rdr.close();
+				return false;
+			}
+			public LabeledSentence next() {
+				if (_i>=order.length) throw new NoSuchElementException();
+				int s = order[_i++];
+				if (s<_resident.size()) return _resident.get(s);
+				try {
+					rdr.seek(_offsets[s]);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					System.exit(1);
+				}
+				return readSentence(rdr);
+			}
+			public void remove() {
+				throw new UnsupportedOperationException("CompiledCorpus.iterator().remove() not supported");
+			}
+		};
+	}
+
+	/** Reads the sentence at the current position of the reader. */
+	private LabeledSentence readSentence(MappedIntReader rdr) {
+		LabeledSentence sent = new LabeledSentence();
+		try {
+			int n = rdr.readInt();
+			for (int i=0; i<n; i++) {
+				String label = _lbls.get(rdr.readInt());
+				int[] feats = rdr.readInts(rdr.readInt());
+				if (_featureMap!=null)
+					for (int h=0; h<feats.length; h++)
+						feats[h] = _featureMap[feats[h]];
+				sent.addCompiledToken(feats, label);
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		return sent;
+	}
+}
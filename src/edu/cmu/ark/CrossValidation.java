@@ -0,0 +1,146 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.martiansoftware.jsap.JSAPResult;
+
+/**
+ * k-fold cross-validation (--folds): the training data is split into k folds of consecutive
+ * sentences (so that the sentences of a document generally stay in the same fold), and for each
+ * fold a model is trained on the other folds and makes predictions for it. The folds are trained
+ * concurrently on a thread pool, each by its own tagger with its own DP tables.
+ *
+ * The features are indexed and the training data compiled once, for all folds. A fold's model thus
+ * has a (zero) weight for the features seen only in its held-out fold, which does not change its
+ * predictions.
+ *
+ * The predictions for all folds are scored together, with the CoNLL-style span evaluation of
+ * {@link DiscriminativeTagger#evaluatePredictions}, and the per-label and overall scores are
+ * printed to stdout along with the overall F1 score of each fold.
+ */
+class CrossValidation {
+	static void run(JSAPResult opts) {
+		String trainFile = opts.getString("train");
+		String labelFile = opts.getString("labels");
+		final int k = opts.getInt("folds");
+		if (trainFile==null || labelFile==null) {
+			System.err.println("--folds requires --train and --labels");
+			System.exit(1);
+		}
+		if (opts.getBoolean("disk") || opts.getString("load")!=null || opts.getString("test")!=null || opts.getBoolean("single-pass")
+			|| opts.getInt("sparse-weights")>0 || opts.getInt("patience")>0 || opts.getBoolean("checkpoint") || opts.getString("resume")!=null) {
+			System.err.println("--folds cannot be used with --disk, --load, --test, --single-pass, --sparse-weights, --patience, --checkpoint, or --resume");
+			System.exit(1);
+		}
+
+		final List<String> labels = DiscriminativeTagger.loadLabelList(labelFile);
+		final List<LabeledSentence> data = DiscriminativeTagger.loadData(trainFile, labels, opts.getBoolean("binary"), false,
+			new ArabicFeatureExtractor(opts).excludeFeatNums);
+		if (k<2 || k>data.size()) {
+			System.err.println("--folds must be at least 2 and at most the number of training sentences ("+data.size()+")");
+			System.exit(1);
+		}
+
+		DiscriminativeTagger compiler = new DiscriminativeTagger();
+		compiler.setOptions(opts);
+		compiler.setLabels(labels);
+		compiler.setTrainingData(LabeledSentence.copiesForDecoding(data));	// indexing sets the predictions
+		List<LabeledSentence> compiled = null;
+		try {
+			compiled = compiler.compileTrainingData();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		final List<LabeledSentence> compiledData = compiled;
+		final Map<String,Integer> featureIndexes = compiler.featureIndexes;
+		final JSAPResult options = opts;
+
+		int numThreads = opts.getInt("fold-threads");
+		if (numThreads<=0) numThreads = Runtime.getRuntime().availableProcessors();
+		numThreads = Math.min(numThreads, k);
+		System.err.println("training "+k+" folds with "+numThreads+" thread(s)");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<List<LabeledSentence>>> results = new ArrayList<Future<List<LabeledSentence>>>();
+		final double[] foldF1 = new double[k];
+		for (int f=0; f<k; f++) {
+			final int fold = f;
+			final int start = (int)((long)f*data.size()/k);
+			final int end = (int)((long)(f+1)*data.size()/k);
+			results.add(pool.submit(new Callable<List<LabeledSentence>>() {
+				public List<LabeledSentence> call() {
+					List<LabeledSentence> train = new ArrayList<LabeledSentence>(data.size()-(end-start));
+					train.addAll(compiledData.subList(0, start));
+					train.addAll(compiledData.subList(end, compiledData.size()));
+					List<LabeledSentence> heldOut = LabeledSentence.copiesForDecoding(data.subList(start, end));
+					foldF1[fold] = trainFold(fold, options, labels, train, featureIndexes, heldOut);
+					return heldOut;
+				}
+			}));
+		}
+		pool.shutdown();
+
+		List<LabeledSentence> predicted = new ArrayList<LabeledSentence>(data.size());
+		for (Future<List<LabeledSentence>> result : results) {
+			try {
+				predicted.addAll(result.get());
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		}
+		for (int f=0; f<k; f++)
+			System.out.println("fold "+f+"\tF1:\t"+foldF1[f]);
+		System.out.println(k+"-fold cross-validation, all folds:");
+		DiscriminativeTagger.evaluatePredictions(predicted, labels, System.out);
+	}
+
+	/**
+	 * Trains a model on (copies of) the compiled sentences of the other folds, and decodes the
+	 * held-out sentences with it.
+	 * @return the overall F1 score of the fold
+	 */
+	private static double trainFold(int fold, JSAPResult opts, List<String> labels, List<LabeledSentence> train,
+		Map<String,Integer> featureIndexes, List<LabeledSentence> heldOut) {
+		System.err.println("training fold "+fold+" on "+train.size()+" sentences");
+		DiscriminativeTagger t = new DiscriminativeTagger();
+		t.setOptions(opts);
+		t.setLabels(labels);
+		t.setPerceptron(true);
+		t.setDevelopmentMode(opts.getBoolean("debug"));
+		t.setSavePrefix((opts.getString("save")!=null) ? opts.getString("save")+".fold"+fold : null);
+		t.setMaxIters(opts.getInt("iters"));
+		boolean prunes = opts.getString("prune").length()>0 || opts.getDouble("truncate")>0;
+		t.setCompiledTrainingData(LabeledSentence.copiesForDecoding(train), (prunes) ? new HashMap<String,Integer>(featureIndexes) : featureIndexes);
+		t.train();
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buf);
+		out.println("fold "+fold+" ("+heldOut.size()+" held-out sentences):");
+		double f1 = t.evaluate(heldOut, t.modelWeights(), new DiscriminativeTagger.DecoderContext(labels.size()), out);
+		out.close();
+		System.err.print(buf.toString());	// all at once, as other folds print concurrently
+		return f1;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Evaluates the model after each training iteration on the development (test) data, in a thread
+ * pool while training continues, and decides when to stop training early: once the F1 score
+ * (see {@link DiscriminativeTagger#evaluatePredictions}) has not improved on the best score for
+ * a given number of evaluated iterations (the patience). The model from the best iteration is kept.
+ *
+ * Each evaluation decodes its own copies of the sentences (see {@link LabeledSentence#copyForDecoding()})
+ * with its own DP tables, using a snapshot of the model taken at the end of the iteration. As an
+ * evaluation finishes some time after its iteration, training may run for an iteration or so past
+ * the point where it could have stopped.
+ */
+class DevEvaluator {
+	private final DiscriminativeTagger tagger;
+	private final List<LabeledSentence> data;
+	private final int patience;
+	private final int numThreads;
+	private final ExecutorService pool;
+	private final LinkedList<Evaluation> pending = new LinkedList<Evaluation>();
+
+	private int lastEvaluated = -1;
+	private int bestIteration = -1;
+	private double bestF1 = Double.NaN;
+	private DiscriminativeTagger bestModel = null;
+
+	private static class Evaluation {
+		final int iteration;
+		final DiscriminativeTagger model;
+		final Future<Double> f1;
+		Evaluation(int iteration, DiscriminativeTagger model, Future<Double> f1) {
+			this.iteration = iteration;
+			this.model = model;
+			this.f1 = f1;
+		}
+	}
+
+	/**
+	 * @param tagger: the tagger being trained (used for decoding)
+	 * @param data: development data
+	 * @param numThreads: number of evaluations to run at once
+	 * @param patience: number of evaluated iterations without improvement after which to stop; 0 never stops
+	 */
+	DevEvaluator(DiscriminativeTagger tagger, List<LabeledSentence> data, int numThreads, int patience) {
+		this.tagger = tagger;
+		this.data = data;
+		this.numThreads = numThreads;
+		this.patience = patience;
+		pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dev-evaluator");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues the evaluation of a snapshot of the model after the given iteration. If more evaluations
+	 * are waiting than there are threads, first waits for the oldest one, so that only a few snapshots
+	 * are held in memory.
+	 */
+	void submit(final int iteration, final DiscriminativeTagger model) {
+		while (pending.size()>numThreads)
+			collect(1);
+		Future<Double> f1 = pool.submit(new Callable<Double>() {
+			public Double call() {
+				List<LabeledSentence> copies = LabeledSentence.copiesForDecoding(data);
+				ByteArrayOutputStream buf = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(buf);
+				out.println("evaluation after iteration "+iteration+":");
+				double f1 = tagger.evaluate(copies, model.modelWeights(), new DiscriminativeTagger.DecoderContext(tagger.getLabels().size()), out);
+				out.close();
+				System.err.print(buf.toString());	// all at once, as training output is printed concurrently
+				return f1;
+			}
+		});
+		pending.add(new Evaluation(iteration, model, f1));
+	}
+
+	/** Records the results of the oldest n evaluations, waiting for them if necessary (n<0: all of them). */
+	private void collect(int n) {
+		for (int i=0; (n<0 || i<n) && !pending.isEmpty(); i++)
+			record(pending.removeFirst());
+	}
+
+	private void record(Evaluation e) {
+		double f1 = Double.NaN;
+		try {
+			f1 = e.f1.get();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		lastEvaluated = e.iteration;
+		if (bestModel==null || f1>bestF1 || (Double.isNaN(bestF1) && !Double.isNaN(f1))) {
+			bestF1 = f1;
+			bestIteration = e.iteration;
+			bestModel = e.model;
+		}
+	}
+
+	/**
+	 * Whether training should stop, given the evaluations finished so far (without waiting for others):
+	 * the last evaluated iteration is at least patience iterations after the best one.
+	 */
+	boolean shouldStop() {
+		if (patience<=0) return false;
+		while (!pending.isEmpty() && pending.getFirst().f1.isDone())
+			record(pending.removeFirst());
+		if (bestIteration>=0 && lastEvaluated-bestIteration>=patience) {
+			System.err.println("stopping early: F1 has not improved for "+(lastEvaluated-bestIteration)+" iterations since iteration "+bestIteration);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for all evaluations to finish.
+	 * @return snapshot of the model from the iteration with the best F1 score (null if none was evaluated)
+	 */
+	DiscriminativeTagger finish() {
+		collect(-1);
+		pool.shutdown();
+		if (bestModel!=null)
+			System.err.println("best iteration: "+bestIteration+" (F1 "+bestF1+")");
+		return bestModel;
+	}
+}
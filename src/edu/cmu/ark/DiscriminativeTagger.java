@@ -18,8 +18,10 @@
 package edu.cmu.ark;
 
 
+import java.nio.IntBuffer;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.io.*;
@@ -39,6 +41,9 @@ import com.martiansoftware.jsap.defaultsources.PropertyDefaultSource;
 
 
 import edu.cmu.ark.util.LineChunkReader;
+import edu.cmu.ark.util.PrefetchingIterator;
+import edu.cmu.ark.util.SegmentedLRUCache;
+import edu.cmu.ark.util.TabSeparatedParser;
 
 public class DiscriminativeTagger implements Serializable{
 	
@@ -46,8 +51,12 @@ public class DiscriminativeTagger implements Serializable{
 	 *  Gives the option of querying the sentences in a randomly shuffled order.
 	 *  The feature file may be in a text format (one token per line, with feature values in 
 	 *  tab-delimited columns) or in binary format, with integers >=20 corresponding to 
-	 *  grounded feature offsets and the value 10 serving as a break between tokens.
-	 *  Multiple consecutive token delimiter characters indicate a sequence break.
+	 *  the strings of the columns (see {@link BinaryFeatureFile}) and the value 10 serving 
+	 *  as a break between tokens. Multiple consecutive token delimiter characters indicate 
+	 *  a sequence break.
+	 *  Text is parsed from its UTF-8 bytes (see {@link TabSeparatedParser}); the columns of 
+	 *  features excluded from extraction can be skipped, in which case they are read as 
+	 *  empty strings.
 	 */
 	static class FeatureFileReader implements Iterator<LabeledSentence>, Iterable<LabeledSentence> {
 		LineChunkReader _seqrdr;
@@ -55,13 +64,29 @@ public class DiscriminativeTagger implements Serializable{
 		List<String> _lbls;
 		boolean _binarized;
 		boolean _allowunk;
+		int _prefetch = 0;
+		String _prefetchName = null;
 		
 		public FeatureFileReader(File file, List<String> labelTypes, boolean binarized) throws IOException {
 			this(file,labelTypes,binarized,false);
 		}
 		
 		public FeatureFileReader(File file, List<String> labelTypes, boolean binarized, boolean allowUnknownLabelTypes) throws IOException {
+			this(file,labelTypes,binarized,allowUnknownLabelTypes,null);
+		}
+		
+		/** @param excludedFeatures: numbers of the features (as in ArabicFeatureExtractor.excludeFeatNums, 
+		 *  i.e., column numbers minus 1) whose columns are not to be read from a text file, or null */
+		public FeatureFileReader(File file, List<String> labelTypes, boolean binarized, boolean allowUnknownLabelTypes, 
+			Set<Integer> excludedFeatures) throws IOException {
 			_seqrdr = new LineChunkReader(file,binarized);
+			if (!binarized) {
+				Set<Integer> skippedColumns = new HashSet<Integer>();
+				if (excludedFeatures!=null)
+					for (int f : excludedFeatures)
+						skippedColumns.add(f+1);
+				_seqrdr.setParser(new TabSeparatedParser(skippedColumns));
+			}
 			_seqiter = _seqrdr.iterator();
 			if (labelTypes.size()<2)
 				throw new RuntimeException("Need at least two label types: "+labelTypes);
@@ -70,9 +95,23 @@ public class DiscriminativeTagger implements Serializable{
 			_allowunk = allowUnknownLabelTypes;
 		}
 		
-		/*public void shuffle() throws IOException {
-			_seqrdr.shuffle();
-		}*/
+		/** Restricts reading to the sentences of a text file that start in a byte range (see {@link LineChunkReader#setRange(long, long)}). */
+		public void setRange(long start, long end) throws IOException {
+			_seqrdr.setRange(start, end);
+		}
+		
+		/** Randomizes the order of sentences for subsequent iterations (see {@link LineChunkReader#shuffle(Random, int)}). */
+		public void shuffle(Random rgen, int blockSize) throws IOException {
+			_seqrdr.shuffle(rgen, blockSize);
+		}
+		
+		/** Read and parse up to the given number of sentences ahead in a background thread
+		 *  (0 to read in the consuming thread). If name is not null, prefetching statistics 
+		 *  are printed under that name after each pass through the file. */
+		public void setPrefetch(int capacity, String name) {
+			_prefetch = capacity;
+			_prefetchName = name;
+		}
 		
 		public void close() {
 			_seqrdr.close();
@@ -90,25 +129,19 @@ public class DiscriminativeTagger implements Serializable{
 			for (Object oln : chunk) {
 			
 				if (_binarized) {
-					int[] ln = (int[])oln;
-					sent.addToken(Arrays.copyOfRange(ln, 0, ln.length-1), _lbls.get(ln[ln.length-1]));
+					IntBuffer ln = (IntBuffer)oln;	// a view of the mapped file: see LineChunkReader.readBinaryChunk()
+					int n = ln.limit();
+					String[] strings = ArabicFeatureExtractor.getInstance().getStringVocabulary();
+					String label = canonicalLabel(strings[ln.get(n-1)-LineChunkReader.BINARY_OFFSET]);
+					ln.limit(n-1);
+					sent.addToken(ln, label);
 				}
 				else {
-					String ln = (String)oln;
-					String[] parts = ln.split("\\t");
+					String[] parts = (String[])oln;	// see LineChunkReader.readColumnChunk()
 					if (parts.length<37) {
-						throw new RuntimeException("Feature file line ("+ln.length()+" chars) has too few ("+parts.length+") columns (is the label missing?): "+ln);
-					}
-					String label = parts[parts.length-1];	// nschneid: was parts[36]; generalized to support additional feature templates
-					try {
-						label = _lbls.get(_lbls.indexOf(label));	// use canonical string for the label
-					} catch (ArrayIndexOutOfBoundsException ex) {
-						System.err.println("Not present among "+_lbls.size()+" known label types: "+label);
-						if (!_allowunk) {
-							ex.printStackTrace();
-							System.exit(1);
-						}
+						throw new RuntimeException("Feature file line has too few ("+parts.length+") columns (is the label missing?): "+Arrays.toString(parts));
 					}
+					String label = canonicalLabel(parts[parts.length-1]);	// nschneid: was parts[36]; generalized to support additional feature templates
 //					String affs[] = new String[6];
 //					String madafeats[] = new String[11];
 //					//int j = 1; 
@@ -132,8 +165,19 @@ public class DiscriminativeTagger implements Serializable{
 			return null;
 		}
 		
+		/** The canonical string for the label (the one in the list of label types), if it is known. */
+		private String canonicalLabel(String label) {
+			int index = _lbls.indexOf(label);
+			if (index>=0) return _lbls.get(index);
+			System.err.println("Not present among "+_lbls.size()+" known label types: "+label);
+			if (!_allowunk) System.exit(1);
+			return label;
+		}
+		
 		public Iterator<LabeledSentence> iterator() {
 			_seqiter = _seqrdr.iterator();	// iteration always starts from scratch (allows iterating over the data multiple times)
+			if (_prefetch>0)
+				return new PrefetchingIterator<LabeledSentence>(this, _prefetch, _prefetchName);
 			return this;
 		}
 		
@@ -141,6 +185,61 @@ public class DiscriminativeTagger implements Serializable{
 	}
 	
 	
+	/** Receives the weight changes computed in a perceptron update
+	 *  (indices are grounded feature indices: see getGroundedFeatureIndex()). */
+	interface WeightUpdater {
+		void add(long index, double delta);
+	}
+	
+	/** Gives the decoder read access to weights, whatever their storage. */
+	interface WeightVector {
+		double get(int liftedFeature, int label);
+	}
+	
+	/** Reads weights from a dense vector in the current layout (see getGroundedFeatureIndex()). */
+	class DenseWeights implements WeightVector {
+		private final double[] weights;
+		DenseWeights(double[] weights) { this.weights = weights; }
+		public double get(int liftedFeature, int label) {
+			return weights[(int)getGroundedFeatureIndex(liftedFeature, label)];
+		}
+	}
+	
+	/** Weights with storage other than a single dense array, which are trained in place 
+	 *  (see trainWithStorage()) and then averaged to give the weights of the model. */
+	interface TrainableWeights extends WeightVector, WeightUpdater {
+		/** Marks the end of a training instance. */
+		void endInstance();
+		/** The weights of the model: averaged, if averaging. */
+		WeightVector averaged();
+	}
+	
+	
+	/** Dynamic programming tables used by the Viterbi algorithm. 
+	 *  Threads that decode concurrently must each have their own.
+	 */
+	static class DecoderContext {
+		double[][] dpValues;
+		int[][] dpBackPointers;
+		
+		DecoderContext(int numLabels) {
+			this(new double[200][numLabels], new int[200][numLabels]);
+		}
+		
+		DecoderContext(double[][] dpValues, int[][] dpBackPointers) {
+			this.dpValues = dpValues;
+			this.dpBackPointers = dpBackPointers;
+		}
+		
+		void ensureCapacity(int numTokens, int numLabels) {
+			if(dpValues.length < numTokens){ //expand the size of the dynamic programming tables if necessary
+				dpValues = new double[(int)(numTokens*1.5)][numLabels];
+				dpBackPointers = new int[(int)(numTokens*1.5)][numLabels];
+			}
+		}
+	}
+	
+	
 	/**
 	 * 
 	 */
@@ -186,12 +285,29 @@ public class DiscriminativeTagger implements Serializable{
 	 * @return List of tagged sentences
 	 */
 	public static List<LabeledSentence> loadData(String path, List<String> labels, boolean binaryFeats, boolean allowUnknownLabels){
+		return loadData(path, labels, binaryFeats, allowUnknownLabels, null);
+	}
+	
+	/** As loadData(String,List,boolean,boolean), without reading the columns of the given 
+	 *  excluded features (see {@link FeatureFileReader}). An uncompressed regular text file is parsed 
+	 *  with --load-threads threads (see {@link ParallelLoader}). The path may be "-" for standard input. */
+	static List<LabeledSentence> loadData(String path, List<String> labels, boolean binaryFeats, boolean allowUnknownLabels, 
+		Set<Integer> excludedFeatures){
 		List<LabeledSentence> sents = new ArrayList<LabeledSentence>();
 		
 		try {
+			int numThreads = (_opts!=null) ? _opts.getInt("load-threads") : 1;
+			if (numThreads<=0) numThreads = Runtime.getRuntime().availableProcessors();
+			if (!binaryFeats && numThreads>1 && LineChunkReader.isSeekable(new File(path))) {
+				System.err.print("loading all data into memory from "+path+" with "+numThreads+" threads...");
+				sents = ParallelLoader.load(new File(path), labels, allowUnknownLabels, excludedFeatures, numThreads);
+				System.err.println(" done");
+				return sents;
+			}
+			
 			System.err.print("loading all data into memory from "+path);
 			int nSent = 0;
-			for (LabeledSentence sent : new FeatureFileReader(new File(path), labels, binaryFeats, allowUnknownLabels)) {
+			for (LabeledSentence sent : new FeatureFileReader(new File(path), labels, binaryFeats, allowUnknownLabels, excludedFeatures)) {
 				sents.add(sent);
  				if (nSent%1000==0) System.err.print(".");
  				nSent++;
@@ -244,18 +360,25 @@ public class DiscriminativeTagger implements Serializable{
 				"DiscriminativeTagger", 
 				"Learn or predict from a discriminative tagging model",
 				new Parameter[]{
-					flag("train", "Path to training data feature file"),
+					flag("train", "Path to training data feature file (\"-\" for standard input). Feature files may be gzip-compressed or named pipes; data that can only be read once (from standard input or a pipe) is held in memory, or compiled in the first pass with --disk"),
+					boolflag("binary", "The feature files (--train, --test, --test-predict) are in the binary format produced by --binarize, with the string vocabulary --vocab"),
+					flag("binarize", "Comma-separated list of feature files to convert to the binary format (for --binary), each written to its path plus '.bin'; their strings are added to the --vocab file (created if it does not exist)"),
+					flag("vocab", "Path to the string vocabulary file of binary feature files (see --binarize and --binary)"),
 					boolflag("disk", "Load instances from the feature file in each pass through the training data, rather than keeping the full training data in memory"),
 					flag("iters", "Number of passes through the training data").setStringParser(JSAP.INTEGER_PARSER).setDefault("1"),
-					flag("test", "Path to test data for a CoNLL-style evaluation; scores will be printed to stderr (following training, if applicable)"),
+					flag("test", "Path to test data for a CoNLL-style evaluation (\"-\" for standard input); scores will be printed to stderr (following training, if applicable)"),
+					flag("patience", "If positive, evaluate the model on the --test data after each iteration of training (in the background, while the next iteration trains), stop training once the F1 score has not improved for this many iterations, and keep the model from the best iteration").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("eval-threads", "Number of threads for evaluating the model after each iteration of training (with --patience, or --debug and --test)").setStringParser(JSAP.INTEGER_PARSER).setDefault("1"),
 					boolflag("debug", "Whether to save the list of feature names (.features file) prior to training, as well as an intermediate model (serialized model file and text file with feature weights) after each iteration of training"),
 					flag("labels", "List of possible labels, one label per line"),
 					flag("save", "Save path for serialized model file (training only). Associated output files (with --debug) will add a suffix to this path."),
-					flag("load", "Path to serialized model file (decoding only)"),
+					boolflag("checkpoint", "After each iteration of (sequential) training, write a checkpoint to the --save path plus '.checkpoint', from which training can be resumed with --resume. Checkpoints are written in the background from a snapshot of the training state, and are always written with --debug"),
+					flag("resume", "Path to a checkpoint (see --checkpoint) from which to resume training: the training data and options must be the same as when it was written"),
+					flag("load", "Path to serialized model file, or with --test-predict, a comma-separated list of paths to predict with several models in one pass over the data (their predictions are printed in successive columns). With --train, training continues from the loaded model (warm start): features and labels (--labels) of the new training data are added to those of the model, and its weights are the starting point"),
 					flag("properties", "Properties file with option defaults").setDefault("tagger.properties"),
 					//boolflag("mira"),
 					boolflag("weights", "Write feature weights to stdout after training"),
-					flag("test-predict", "Path to feature file on which to make predictions (following training, if applicable); predictions will be written to stdout. (Will be ignored if --test is supplied.)"),
+					flag("test-predict", "Path to feature file on which to make predictions (\"-\" for standard input) (following training, if applicable); predictions will be written to stdout. (Will be ignored if --test is supplied.)"),
 					
 					// formerly only allowed in properties file
 					flag("useBIO", "Constrain label bigrams in decoding such that the 'O' label is never followed by a label beginning with 'I'").setStringParser(JSAP.BOOLEAN_PARSER).setDefault("true"),
@@ -266,7 +389,31 @@ public class DiscriminativeTagger implements Serializable{
 					flag("excludeFeatures","Comma-separated list of (0-based) column numbers to ignore when reading feature files. (Do not specify column 0; use --no-lex instead.)").setDefault(""),
 					
 					boolflag("no-lex", "Don't include features for current and context token strings"),
-					boolflag("no-averaging", "Don't use averaging in perceptron training")
+					boolflag("no-averaging", "Don't use averaging in perceptron training"),
+					flag("threads", "Number of worker threads for training. With more than 1, each iteration trains on a separate shard of the (in-memory) training data in each thread, and the resulting weights are mixed").setStringParser(JSAP.INTEGER_PARSER).setDefault("1"),
+					flag("batch-size", "Number of training instances per mini-batch: the instances in a batch are decoded (in parallel, with --threads) with the same weights, and their updates are then applied together. 1 gives the standard perceptron").setStringParser(JSAP.INTEGER_PARSER).setDefault("1"),
+					boolflag("hogwild", "Have all --threads threads decode with and update a single shared weight vector without locking, rather than mixing per-shard weights after each iteration (with 1 thread, this trains sequentially through the shared-weight code path)"),
+					flag("coordinator", "Coordinate distributed training: listen on this port for --workers worker processes, mix their weights after each iteration, and save the model. No training data is read by the coordinator").setStringParser(JSAP.INTEGER_PARSER),
+					flag("workers", "Number of worker processes for --coordinator").setStringParser(JSAP.INTEGER_PARSER).setDefault("2"),
+					flag("worker", "Act as a worker in distributed training: train on the --train file (this worker's shard of the data) and exchange weights with the coordinator at this host:port"),
+					boolflag("chunked-weights", "Store the weight vector in chunks indexed by long integers (sequential training only); this is done automatically when the number of weights exceeds the size of a Java array"),
+					flag("sparse-weights", "If positive, store weights densely only for features occurring at least this many times in the training data, and sparsely (only if nonzero) for all others, reducing memory for large feature and label sets (sequential training only); 0 stores all weights densely").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("truncate", "If positive, keep the weights sparse during sequential training by moving each weight toward 0 by this amount per training instance, stopping at 0 (a truncated gradient step, applied every --truncate-every instances)").setStringParser(JSAP.DOUBLE_PARSER).setDefault("0"),
+					flag("truncate-every", "Number of training instances between the truncation steps of --truncate").setStringParser(JSAP.INTEGER_PARSER).setDefault("1000"),
+					flag("prune", "Comma-separated list of thresholds: after training, prune the model with each threshold in increasing order, setting weights smaller in magnitude to 0 and dropping features whose weights are all 0, and report the size and (with --test) the F1 score of each pruned model. The model is left pruned with the largest threshold. (With --truncate, features whose weights are all 0 are always dropped.)").setDefault(""),
+					boolflag("single-pass", "Index features during the first training iteration rather than in a separate pass over the training data beforehand (sequential training only)"),
+					flag("load-threads", "Number of threads for parsing a text feature file that is loaded into memory (the --train data without --disk, and the --test data): the file is split into byte ranges at sentence boundaries, which are parsed in parallel (0: the number of processors)").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("decompress-threads", "Number of threads for decompressing a gzip-compressed feature file (which is detected automatically) in the BGZF format, as written by bgzip; other gzip files are decompressed on a single background thread (0: the number of processors)").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("prefetch", "Number of sentences to read and parse ahead in a background thread when reading training data from disk (--disk) or predicting from a file (--test-predict); 0 reads in the decoding thread").setStringParser(JSAP.INTEGER_PARSER).setDefault("256"),
+					flag("shuffle-block", "With --disk, shuffle the training data in each iteration by reading blocks of this many consecutive sentences in random order; 1 gives a fully random order, like in-memory training, and 0 disables shuffling").setStringParser(JSAP.INTEGER_PARSER).setDefault("1"),
+					boolflag("no-compile", "With --disk, re-read and re-extract features from the training feature file in every iteration, rather than compiling it to feature indices in a binary file during the first pass"),
+					flag("compiled-corpus", "With --disk, path of the binary file to which the compiled training data is written (default: a temporary file)"),
+					flag("corpus-memory", "With --disk, memory budget in MB for keeping compiled training sentences in memory rather than reading them from the compiled file (default: a quarter of the maximum heap size)").setStringParser(JSAP.INTEGER_PARSER),
+					flag("sweep", "Path to a file of configurations to train and evaluate on the --test data, one per line: each line holds options that are added to (or replace) the other command-line options. The training and test data are loaded once, training data is compiled once for each distinct set of feature options, and the configurations are trained concurrently; a table of their scores, training times and model sizes is printed to stdout"),
+					flag("sweep-threads", "Number of configurations to train at once with --sweep (0: the number of processors)").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("folds", "Cross-validate on the --train data with this many folds: train a model on all but one fold for each fold (concurrently), and print the scores of the predictions for all held-out folds to stdout").setStringParser(JSAP.INTEGER_PARSER),
+					flag("fold-threads", "Number of folds to train at once with --folds (0: the number of processors)").setStringParser(JSAP.INTEGER_PARSER).setDefault("0"),
+					flag("cache-size", "Maximum number of token contexts whose label scores are cached when decoding with fixed weights (testing and prediction); 0 disables the cache").setStringParser(JSAP.INTEGER_PARSER).setDefault("100000")
 				});
 		} catch (com.martiansoftware.jsap.JSAPException ex) {
 			ex.printStackTrace();
@@ -280,7 +427,7 @@ public class DiscriminativeTagger implements Serializable{
 		String testFile = opts.getString("test");
 		String labelFile = opts.getString("labels");
 		boolean loadTrainInMemory = !opts.getBoolean("disk");
-		final boolean binaryFeats = false;
+		final boolean binaryFeats = opts.getBoolean("binary");
 		int maxIters = opts.getInt("iters");
 		boolean developmentMode = opts.getBoolean("debug");
 		String saveFile = opts.getString("save");
@@ -290,9 +437,55 @@ public class DiscriminativeTagger implements Serializable{
 		String testPredictFile = opts.getString("test-predict");
 		
 		_opts = opts;	// static class variable
+		LineChunkReader.setDecompressionThreads((opts.getInt("decompress-threads")>0) ? opts.getInt("decompress-threads") : Runtime.getRuntime().availableProcessors());
+		
+		if (opts.getString("binarize")!=null || binaryFeats) {
+			if (opts.getString("vocab")==null) {
+				System.err.println("--binarize and --binary require --vocab");
+				System.exit(1);
+			}
+			try {
+				if (opts.getString("binarize")!=null) {
+					BinaryFeatureFile.binarize(opts.getString("binarize").split(","), opts.getString("vocab"));
+					return;
+				}
+				ArabicFeatureExtractor.getInstance().setStringVocabulary(BinaryFeatureFile.readVocabulary(opts.getString("vocab")));
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+		}
+		
+		if (opts.getString("sweep")!=null) {
+			ParameterSweep.run(optparser, args, opts);
+			return;
+		}
+		if (opts.contains("folds")) {
+			CrossValidation.run(opts);
+			return;
+		}
+		if (loadFile != null && loadFile.contains(",")) {	// several models
+			if (trainFile != null || testFile != null || testPredictFile == null) {
+				System.err.println("Several models (--load with a comma-separated list) can only be used with --test-predict");
+				System.exit(1);
+			}
+			List<DiscriminativeTagger> models = new ArrayList<DiscriminativeTagger>();
+			for (String path : loadFile.split(",")) {
+				System.err.print("loading model from "+path+"...");
+				DiscriminativeTagger model = DiscriminativeTagger.loadModel(path);
+				model.setBinaryFeats(binaryFeats);
+				model.setDevelopmentMode(developmentMode);
+				models.add(model);
+				System.err.println("done.");
+			}
+			printPredictions(testPredictFile, models);
+			return;
+		}
 
+		boolean isCoordinator = opts.contains("coordinator");
+		String workerOf = opts.getString("worker");
 
-		if(trainFile == null && loadFile == null){
+		if(trainFile == null && loadFile == null && !isCoordinator){
 			System.err.println("Missing argument: --train or --load");
 			System.exit(0);
 		}
@@ -310,8 +503,18 @@ public class DiscriminativeTagger implements Serializable{
 			t.setBinaryFeats(binaryFeats);
 			t.setDevelopmentMode(developmentMode);
 			System.err.println("done.");
+			if (trainFile != null) {	// warm start (see train())
+				if (isCoordinator || workerOf!=null) {
+					System.err.println("Distributed training cannot continue from a loaded model (omit --load)");
+					System.exit(1);
+				}
+				System.err.println("continuing training of the loaded model on "+trainFile+"...");
+				t.setSavePrefix(saveFile);
+				if (labelFile != null) t.extendLabels(loadLabelList(labelFile));
+			}
 		}else{
-			System.err.println("training model from "+trainFile+"...");
+			if (isCoordinator) System.err.println("training model from distributed workers...");
+			else System.err.println("training model from "+trainFile+"...");
 			t = new DiscriminativeTagger();
 			t.setBinaryFeats(binaryFeats);
 			t.setDevelopmentMode(developmentMode);
@@ -319,30 +522,60 @@ public class DiscriminativeTagger implements Serializable{
 			t.setSavePrefix(saveFile);
 			List<String> labels = loadLabelList(labelFile);
 			t.setLabels(labels);
-
-			if (loadTrainInMemory) {
-				List<LabeledSentence> data = loadData(trainFile,labels,binaryFeats,false);
-				t.setTrainingData(data);
-			}
-			else {
-				try {
-					FeatureFileReader datardr = new FeatureFileReader(new File(trainFile), labels, binaryFeats);
-					t.setTrainingData(datardr);
-				} catch (IOException ex) {
-					ex.printStackTrace();
+		}
+		
+		if (trainFile == null) {
+			// decoding only, or distributed training (the training data is held by the workers)
+		}
+		else if (loadTrainInMemory) {
+			List<LabeledSentence> data = loadData(trainFile,t.getLabels(),binaryFeats,false,t.featureExtractor().excludeFeatNums);
+			t.setTrainingData(data);
+		}
+		else {
+			try {
+				// a stream is only read in the first pass, in which the training data is compiled for later passes
+				if (opts.getBoolean("no-compile") && LineChunkReader.isStream(new File(trainFile))) {
+					System.err.println("Training data read with --disk from a stream can only be read once, so it must be compiled: omit --no-compile");
+					System.exit(1);
+				}
+				if ((opts.getBoolean("no-compile") || opts.getBoolean("single-pass")) && opts.getInt("shuffle-block")>0 
+					&& !LineChunkReader.isSeekable(new File(trainFile))) {
+					System.err.println("Training data read with --disk from a compressed file or a stream can only be shuffled once it is compiled: omit --no-compile and --single-pass, or use --shuffle-block 0");
 					System.exit(1);
 				}
+				FeatureFileReader datardr = new FeatureFileReader(new File(trainFile), t.getLabels(), binaryFeats, false, t.featureExtractor().excludeFeatNums);
+				datardr.setPrefetch(opts.getInt("prefetch"), (developmentMode) ? "training data reader" : null);
+				t.setTrainingData(datardr);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
 			}
 		}
 		
 		if(testFile != null){
-			List<LabeledSentence> data = loadData(testFile,t.getLabels(),binaryFeats,true);
+			List<LabeledSentence> data = loadData(testFile,t.getLabels(),binaryFeats,true,t.featureExtractor().excludeFeatNums);
 			t.setTestData(data);
 		}
 
-		if(loadFile == null){
+		if(loadFile == null || trainFile != null){
 			t.setMaxIters(maxIters);
-			t.train();
+			if (isCoordinator || workerOf!=null) {
+				boolean averaging = !opts.getBoolean("no-averaging");
+				try {
+					if (isCoordinator)
+						DistributedTraining.runCoordinator(t, opts.getInt("coordinator"), opts.getInt("workers"), averaging);
+					else {
+						int colon = workerOf.lastIndexOf(':');
+						DistributedTraining.runWorker(t, workerOf.substring(0,colon), Integer.parseInt(workerOf.substring(colon+1)), averaging);
+						return;	// the coordinator saves and evaluates the model
+					}
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					System.exit(1);
+				}
+			}
+			else
+				t.train();
 		}
 
 		if(testFile != null){
@@ -353,7 +586,7 @@ public class DiscriminativeTagger implements Serializable{
 			//data = loadData(testPredictFile, t.getLabels(),true);
 			//t.printPredictions(data, t.getWeights());
 			// nschneid: the above didn't scale to large files; instead:
-			t.printPredictions(testPredictFile, t.getLabels(), t.getWeights());
+			t.printPredictions(testPredictFile, t.getLabels(), t.modelWeights());
 		}else{
 // 			t.tagStandardInput();
 		}
@@ -371,24 +604,34 @@ public class DiscriminativeTagger implements Serializable{
 	}
 
 	public void printWeights(PrintStream out){
-		printWeights(out, finalWeights);
+		if (weightStore!=null) {
+			out.println(featureIndexes.size() + " " + labels.size() + " " + weightStore);
+			printWeights(out, weightStore);
+		}
+		else
+			printWeights(out, finalWeights);
 	}
 	
 	public void printWeights(PrintStream out, double[] weights){
-		List<String> fnames = new ArrayList<String>();
-		fnames.addAll(featureIndexes.keySet());
-		Collections.sort(fnames);
-out.println(fnames.size() + " " + labels.size() + " " + weights.length + " " +weights[0]);
+out.println(featureIndexes.size() + " " + labels.size() + " " + weights.length + " " +weights[0]);
 int nNonzero = 0;
 for (double w : weights) {
 	if (w!=0.0) nNonzero++;
 }
 if (nNonzero==0) throw new RuntimeException("All weights are 0.");
+		printWeights(out, new DenseWeights(weights));
+	}
+	
+	/** Prints the nonzero weights, sorted by feature name. */
+	void printWeights(PrintStream out, WeightVector weights){
+		List<String> fnames = new ArrayList<String>();
+		fnames.addAll(featureIndexes.keySet());
+		Collections.sort(fnames);
 		for(String fname: fnames){
 			int findex = featureIndexes.get(fname);
 			for(int i=0; i<labels.size();i++){
 				String label = labels.get(i);
-				double value = weights[getGroundedFeatureIndex(findex,i)];
+				double value = weights.get(findex,i);
 				if(value != 0.0){
 					out.println(label+"\t"+fname+"\t"+value);
 				}
@@ -449,14 +692,26 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 
 
-	private void setLabels(List<String> labels){
+	void setLabels(List<String> labels){
 		this.labels = labels;
 	}
+	
+	/** Adds those of the given labels that the model does not have, after its own labels 
+	 *  (so that their indices do not change: see train()). */
+	private void extendLabels(List<String> newLabels){
+		if (numLoadedLabels==0) numLoadedLabels = labels.size();
+		for (String label : newLabels) {
+			if (!labels.contains(label)) {
+				System.err.println("adding label: "+label);
+				labels.add(label);
+			}
+		}
+	}
 
 
 
 
-	private void setDevelopmentMode(boolean developmentMode) {
+	void setDevelopmentMode(boolean developmentMode) {
 		this.developmentMode = developmentMode;
 	}
 	private void setBinaryFeats(boolean binarized) {
@@ -505,30 +760,89 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 
 	/**
-	 * serialize model, clearing out unneeded data first 
-	 * (and then resetting it so it can be used in subsequent iterations if necessary)
+	 * serialize model, without unneeded data (see snapshotModel()), 
+	 * once any files being written in the background are complete
 	 * 
 	 * @param savePath
 	 */
-	private void saveModel(String savePath) {
-		Iterable<LabeledSentence> tmpTrainingData = trainingData;
-		List<LabeledSentence> tmpTestData = testData;
-		String tmpSavePrefix = savePrefix;
+	void saveModel(String savePath) {
+		finishBackgroundWrites();
+		writeModel(snapshotModel(false), savePath);
+	}
+	
+	private static void writeModel(DiscriminativeTagger model, String savePath) {
 		try {
 			ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(savePath)));
-			trainingData = null;
-			testData = null;
-			savePrefix = null;
-			out.writeObject(this);
+			out.writeObject(model);
 			out.flush();
 			out.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-
-		trainingData = tmpTrainingData;
-		testData = tmpTestData;
-		savePrefix = tmpSavePrefix;
+	}
+	
+	/**
+	 * A copy of the model for saving: without the training and test data or the DP tables, 
+	 * and with the weights in the standard layout.
+	 * @param copyWeights Whether the copy must be unaffected by further training (e.g., to be 
+	 * saved in the background); otherwise it may share the weight vector
+	 */
+	private DiscriminativeTagger snapshotModel(boolean copyWeights) {
+		DiscriminativeTagger res = new DiscriminativeTagger();
+		res.labels = labels;
+		res.featureIndexes = featureIndexes;	// not modified during training after features are indexed (background tasks finish before it is pruned)
+		if (featureMajorLayout)	// models are always saved in the standard layout
+			res.finalWeights = toLabelMajor(finalWeights);
+		else if (finalWeights!=null)
+			res.finalWeights = (copyWeights) ? finalWeights.clone() : finalWeights;
+		res.weightStore = weightStore;	// replaced rather than modified by training
+		res.lastFeatureIndex = lastFeatureIndex;
+		res.maxIters = maxIters;
+		res.developmentMode = developmentMode;
+		res.binaryFeats = binaryFeats;
+		res.perceptron = perceptron;
+		res.rgen = (copyWeights) ? TrainingCheckpoint.copyRandom(rgen) : rgen;	// (training goes on shuffling with rgen while a copy is written)
+		res.dpValues = null;	// recreated when the model is used (see defaultDecoderContext())
+		res.dpBackPointers = null;
+		return res;
+	}
+	
+	/**
+	 * Runs a task that writes files from a snapshot (of the model or of the training state) 
+	 * on a background thread, so that training does not wait for it. Tasks run one at a time, 
+	 * in order. Before the first task for an iteration is queued, those for earlier iterations 
+	 * must have finished, so that at most one iteration's snapshots are held in memory.
+	 */
+	private void writeInBackground(int iteration, Runnable task) {
+		if (backgroundWrites==null) backgroundWrites = new ArrayList<Future<?>>();
+		if (iteration!=backgroundIteration) finishBackgroundWrites();
+		if (backgroundWriter==null) {
+			backgroundWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "background-writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		backgroundWrites.add(backgroundWriter.submit(task));
+		backgroundIteration = iteration;
+	}
+	
+	/** Waits for the files being written in the background (if any) to be complete. */
+	void finishBackgroundWrites() {
+		if (backgroundWrites==null || backgroundWrites.isEmpty()) return;
+		long startTime = System.currentTimeMillis();
+		try {
+			for (Future<?> write : backgroundWrites)
+				write.get();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		backgroundWrites.clear();
+		long waited = System.currentTimeMillis()-startTime;
+		if (waited>0) System.err.println("waited "+NumberFormat.getInstance().format(waited/1000.0)+" s for files being written in the background");
 	}
 
 
@@ -562,9 +876,13 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * (or perhaps MIRA in the future, but that doesn't currently work)
 	 * See Collins paper on Discriminative HMMs. 
 	 * 
+	 * If the model already has weights (it was loaded), training continues from them (warm start): 
+	 * features and labels of the training data are added to the model's, keeping the indices of the 
+	 * existing ones, and the existing weights are moved to their positions in the larger weight vector 
+	 * to be the starting point of training.
 	 */
 	public void train(){
-		boolean averaging = !_opts.getBoolean("no-averaging");
+		boolean averaging = !opts().getBoolean("no-averaging");
 		
 		if(trainingData == null){
 			System.err.println("training data not set.");
@@ -575,26 +893,328 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 		createDPTables();
 		
-		try {
-			trainingData = createFeatures();
-		} catch (IOException ex) {
-			ex.printStackTrace();
+		int numThreads = opts().getInt("threads");
+		int batchSize = opts().getInt("batch-size");
+		boolean singlePass = opts().getBoolean("single-pass");
+		boolean hogwild = opts().getBoolean("hogwild");
+		if (singlePass && (numThreads>1 || batchSize>1 || hogwild)) {
+			System.err.println("--single-pass is only supported for sequential training (omit --threads, --batch-size, and --hogwild)");
+			System.exit(1);
+		}
+		int minDenseCount = opts().getInt("sparse-weights");
+		boolean chunked = opts().getBoolean("chunked-weights");
+		if ((minDenseCount>0 || chunked) && (singlePass || numThreads>1 || batchSize>1 || hogwild)) {
+			System.err.println("--sparse-weights and --chunked-weights are only supported for sequential training (omit --single-pass, --threads, --batch-size, and --hogwild)");
 			System.exit(1);
 		}
 		
-		System.err.println("training data type: "+trainingData.getClass().getName());
-
-		// finalWeights will contain a running average of the currentWeights vectors at all timesteps
-		double[] currentWeights = new double[finalWeights.length];
-
-		long numWordsProcessed = 0;
-		long numWordsIncorrect=0;
+		warmStart = (finalWeights!=null || weightStore!=null);
+		if (featuresIndexed && (singlePass || warmStart || minDenseCount>0)) {
+			System.err.println("Precompiled training data cannot be used with --single-pass, --sparse-weights, or a loaded model");
+			System.exit(1);
+		}
+		if (warmStart && singlePass) {
+			System.err.println("--single-pass cannot be used to continue training a loaded model");
+			System.exit(1);
+		}
+		if (warmStart) {
+			loadedWeights = detachedModelWeights();
+			numLoadedFeatures = featureIndexes.size();
+			if (numLoadedLabels==0) numLoadedLabels = labels.size();	// (not extended)
+			finalWeights = null;
+			weightStore = null;
+		}
+		
+		long startTime = System.currentTimeMillis();
+		if (!singlePass) {
+			if (featuresIndexed)	// precompiled (see setCompiledTrainingData())
+				allocateWeights();
+			else {
+				try {
+					trainingData = createFeatures();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+					System.exit(1);
+				}
+			}
+			
+			System.err.println("training data type: "+trainingData.getClass().getName());
+			saveFeatureList();
+		}
+		
+		long nWeights = (long)labels.size()*featureIndexes.size();
+		if (!singlePass && minDenseCount==0 && !chunked && !ChunkedWeights.fitsInArray(nWeights)) {
+			if (numThreads>1 || batchSize>1 || hogwild) {
+				System.err.println("The weight vector ("+nWeights+" weights) is too large for a single array, as required for training with --threads, --batch-size, or --hogwild");
+				System.exit(1);
+			}
+			System.err.println("The weight vector ("+nWeights+" weights) is too large for a single array: using chunked storage");
+			chunked = true;
+		}
+		double truncation = opts().getDouble("truncate");
+		if (truncation>0 && (minDenseCount>0 || chunked || numThreads>1 || batchSize>1 || hogwild)) {
+			System.err.println("--truncate is only supported for sequential training with dense weights (omit --sparse-weights, --chunked-weights, --threads, --batch-size, and --hogwild)");
+			System.exit(1);
+		}
+		if ((opts().getBoolean("checkpoint") || opts().getString("resume")!=null) && (singlePass || minDenseCount>0 || chunked || numThreads>1 || batchSize>1 || hogwild)) {
+			System.err.println("--checkpoint and --resume are only supported for sequential training with dense weights (omit --single-pass, --sparse-weights, --chunked-weights, --threads, --batch-size, and --hogwild)");
+			System.exit(1);
+		}
+		if (opts().getBoolean("checkpoint") && savePrefix==null) {
+			System.err.println("--checkpoint requires --save");
+			System.exit(1);
+		}
+		int patience = opts().getInt("patience");
+		if (patience>0 && testData==null) {
+			System.err.println("--patience requires --test");
+			System.exit(1);
+		}
+		if (testData!=null && (developmentMode || patience>0))
+			devEvaluator = new DevEvaluator(this, testData, opts().getInt("eval-threads"), patience);
+		
+		if (loadedWeights!=null && finalWeights!=null) {
+			addLoadedWeights(new WeightUpdater() {
+				public void add(long index, double delta) { finalWeights[(int)index] += delta; }
+			});
+		}
+		
+		long nInstances;
+		if (minDenseCount>0) {
+			boolean[] isDense = new boolean[featureIndexes.size()];
+			for (int f=0; f<isDense.length; f++)
+				isDense[f] = (featureCounts[f]>=minDenseCount);
+			featureCounts = null;
+			HybridWeights weights = new HybridWeights(featureIndexes.size(), labels.size(), isDense, averaging);
+			if (loadedWeights!=null) addLoadedWeights(weights);
+			nInstances = trainWithStorage(weights);
+		}
+		else if (chunked) {
+			ChunkedWeights weights = new ChunkedWeights(featureIndexes.size(), labels.size(), averaging);
+			if (loadedWeights!=null) addLoadedWeights(weights);
+			nInstances = trainWithStorage(weights);
+		}
+		else if (singlePass)
+			nInstances = trainSequentially(averaging, true);
+		else if (batchSize>1)
+			nInstances = trainMiniBatch(batchSize, numThreads, averaging);
+		else if (hogwild)	// (even with 1 thread, for comparison with sequential training)
+			nInstances = trainHogwild(numThreads, averaging);
+		else if (numThreads>1)
+			nInstances = trainByParameterMixing(numThreads, averaging);
+		else
+			nInstances = trainSequentially(averaging, false);
+		finishBackgroundWrites();	// they may use the feature index and weight layout
+		loadedWeights = null;
+		if (devEvaluator!=null) {
+			DiscriminativeTagger best = devEvaluator.finish();
+			devEvaluator = null;
+			if (patience>0 && best!=null) {	// keep the model from the best iteration (in the standard layout)
+				finalWeights = best.finalWeights;
+				weightStore = best.weightStore;
+				featureMajorLayout = false;
+			}
+		}
+		if (featureMajorLayout) {
+			finalWeights = toLabelMajor(finalWeights);
+			featureMajorLayout = false;
+		}
+		double elapsed = (System.currentTimeMillis()-startTime)/1000.0;
+		System.err.println("training time: "+NumberFormat.getInstance().format(elapsed)+" s for "+nInstances+" instances ("
+			+NumberFormat.getInstance().format(nInstances/elapsed)+" instances/s)");
+		
+		String prune = opts().getString("prune");
+		if (prune.length()>0 || truncation>0) {
+			String[] parts = (prune.length()>0) ? prune.split(",") : new String[]{"0"};
+			double[] thresholds = new double[parts.length];
+			for (int i=0; i<parts.length; i++)
+				thresholds[i] = Double.parseDouble(parts[i]);
+			pruneModel(thresholds);
+		}
+		
+		if(savePrefix != null) saveModel(savePrefix);
+	}
+	
+	/** 
+	 * Sequential perceptron training with weights stored other than in a single dense array: 
+	 * hybrid dense/sparse storage (--sparse-weights), or chunked storage for weight vectors too 
+	 * large for a Java array. The model's weights are then weightStore rather than finalWeights.
+	 * @return total number of training instances processed */
+	private long trainWithStorage(TrainableWeights weights) {
+		finalWeights = null;
 		long totalInstancesProcessed = 0;
+		for(int numIters=0;numIters<maxIters;numIters++){
+			System.err.println("iter="+numIters);
+			shuffleTrainingData();
+			
+			long numWordsProcessed = 0, numWordsIncorrect = 0;
+			int nWeightUpdates = 0;
+			for(LabeledSentence sent : trainingData){
+				findBestLabelSequenceViterbi(sent, weights, false, null, defaultDecoderContext());
+				nWeightUpdates += perceptronUpdate(sent, weights);
+				for(int j=0; j<sent.length(); j++){
+					if(!sent.getLabels().get(j).equals(sent.getPredictions().get(j))){
+						numWordsIncorrect++;
+					}
+				}
+				numWordsProcessed+=sent.length();
+				totalInstancesProcessed++;
+				weights.endInstance();
+			}
+			System.err.println("pct. correct words in this iteration:"+NumberFormat.getInstance().format((double)(numWordsProcessed-numWordsIncorrect)/numWordsProcessed));
+			System.err.println("weights: "+weights);
+			
+			if(developmentMode || devEvaluator!=null){
+				weightStore = weights.averaged();
+				evaluateIteration(numIters, weights);
+			}
+			
+			System.err.println("weight updates this iteration: "+nWeightUpdates);
+			if (nWeightUpdates==0) {
+				System.err.println("converged! stopping training");
+				break;
+			}
+			if (devEvaluator!=null && devEvaluator.shouldStop()) break;
+		}
 		
-		//long trainingDataSize = 0;
+		weightStore = weights.averaged();
+		System.err.println("model weights: "+weightStore);
+		return totalInstancesProcessed;
+	}
+	
+	/**
+	 * Prunes the trained model with each of the given thresholds in increasing order (see 
+	 * {@link #pruneModel(double)}), reporting the size of the model and, if there is test data, 
+	 * its F1 score at each threshold. The model is left pruned with the largest threshold.
+	 */
+	private void pruneModel(double[] thresholds) {
+		Arrays.sort(thresholds);
+		NumberFormat nf = NumberFormat.getInstance();
+		nf.setMaximumFractionDigits(2);
+		List<String> rows = new ArrayList<String>();
+		for (double threshold : thresholds) {
+			long nNonzero = pruneModel(threshold);
+			String row = threshold+"\t"+featureIndexes.size()+"\t"+nNonzero+"\t"+nf.format(modelBytes()/1048576.0);
+			if (testData!=null)
+				row += "\t"+test(modelWeights());
+			rows.add(row);
+		}
+		System.err.println("threshold\tlifted features\tnonzero weights\tMB"+((testData!=null) ? "\tF1" : ""));
+		for (String row : rows)
+			System.err.println(row);
+	}
+	
+	/**
+	 * Sets the weights of the model that are smaller in magnitude than threshold to 0, and drops 
+	 * the lifted features whose weights are then 0 for all labels, renumbering the others 
+	 * (in their original order). Features that are not in the index are ignored in decoding, 
+	 * so dropping a feature does not change the predictions.
+	 * @return number of nonzero weights in the pruned model
+	 */
+	long pruneModel(double threshold) {
+		WeightVector weights = modelWeights();
+		int nFeats = featureIndexes.size();
+		int nLabels = labels.size();
+		int[] featureMap = new int[nFeats];
+		int nKept = 0;
+		long nNonzero = 0;
+		for (int f=0; f<nFeats; f++) {
+			int n = 0;
+			for (int l=0; l<nLabels; l++) {
+				double w = weights.get(f,l);
+				if (w!=0.0 && Math.abs(w)>=threshold) n++;
+			}
+			featureMap[f] = (n>0) ? nKept++ : -1;
+			nNonzero += n;
+		}
 		
+		// copy the remaining weights into storage of the same kind (or a dense array, if it fits)
+		double[] dense = null;
+		TrainableWeights store = null;
+		if (weightStore instanceof HybridWeights) {
+			boolean[] isDense = new boolean[nKept];
+			for (int f=0; f<nFeats; f++)
+				if (featureMap[f]>=0) isDense[featureMap[f]] = ((HybridWeights)weightStore).isDense(f);
+			store = new HybridWeights(nKept, nLabels, isDense, false);
+		}
+		else if (ChunkedWeights.fitsInArray((long)nKept*nLabels))
+			dense = new double[nKept*nLabels];
+		else
+			store = new ChunkedWeights(nKept, nLabels, false);
+		for (int f=0; f<nFeats; f++) {
+			if (featureMap[f]<0) continue;
+			for (int l=0; l<nLabels; l++) {
+				double w = weights.get(f,l);
+				if (w==0.0 || Math.abs(w)<threshold) continue;
+				long index = featureMap[f] + (long)l*nKept;
+				if (dense!=null) dense[(int)index] = w;
+				else store.add(index, w);
+			}
+		}
 		
-		if(developmentMode && savePrefix != null) {	// print features before training
+		for (Iterator<Map.Entry<String,Integer>> it = featureIndexes.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String,Integer> entry = it.next();
+			int f = featureMap[entry.getValue()];
+			if (f<0) it.remove();
+			else entry.setValue(f);
+		}
+		finalWeights = dense;
+		weightStore = store;
+		System.err.println("pruned weights smaller than "+threshold+": "+nKept+" of "+nFeats+" lifted features and "+nNonzero+" nonzero weights remain");
+		return nNonzero;
+	}
+	
+	/** Approximate memory used by the weights of the model, in bytes. */
+	long modelBytes() {
+		if (weightStore instanceof HybridWeights) return ((HybridWeights)weightStore).memoryBytes();
+		if (weightStore instanceof ChunkedWeights) return 8*((ChunkedWeights)weightStore).length();
+		return 8L*finalWeights.length;
+	}
+	
+	/**
+	 * The weights of the model, readable independently of the feature index (which training 
+	 * a loaded model extends).
+	 */
+	private WeightVector detachedModelWeights() {
+		if (weightStore!=null) return weightStore;
+		final double[] weights = finalWeights;
+		final int nFeats = featureIndexes.size();
+		return new WeightVector() {
+			public double get(int liftedFeature, int label) {
+				return weights[liftedFeature + label*nFeats];
+			}
+		};
+	}
+	
+	/**
+	 * When continuing to train a loaded model, adds its weights to the given (new) weights, at the 
+	 * positions of its features and labels in the extended feature index and label list.
+	 */
+	private void addLoadedWeights(WeightUpdater weights) {
+		long nNonzero = 0;
+		for (int f=0; f<numLoadedFeatures; f++) {
+			for (int l=0; l<numLoadedLabels; l++) {	// the loaded model's labels come first (see extendLabels())
+				double w = loadedWeights.get(f, l);
+				if (w!=0.0) {
+					weights.add(getGroundedFeatureIndex(f, l), w);
+					nNonzero++;
+				}
+			}
+		}
+		System.err.println("warm start: "+nNonzero+" nonzero weights for "+numLoadedFeatures+" of "+featureIndexes.size()
+			+" lifted features and "+numLoadedLabels+" of "+labels.size()+" labels from the loaded model");
+	}
+	
+	/** A new parameter vector for training, starting from the weights in finalWeights 
+	 *  (which are 0 unless training continues from a loaded model). */
+	private PerceptronWeights initialWeights(boolean averaging, boolean shared) {
+		PerceptronWeights weights = new PerceptronWeights(finalWeights.length, averaging, shared);
+		if (warmStart) weights.setCurrent(finalWeights);
+		return weights;
+	}
+	
+	/** With --debug, writes the list of features to a file before training. */
+	private void saveFeatureList() {
+		if(developmentMode && savePrefix != null) {
 			try {
 				PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(savePrefix+".features")));
 				printFeatures(out);
@@ -603,20 +1223,100 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 				ex.printStackTrace();
 			}
 		}
+	}
+	
+	/** The standard perceptron training loop: one update per training instance, in order. 
+	 *  @param singlePass If true, features have not been indexed in advance: they are indexed 
+	 *  (and the training data compiled, if applicable) as they are encountered in the first iteration, 
+	 *  with the weight vector growing accordingly. The weights use the feature-major layout 
+	 *  until the end of training, because it is unaffected by the addition of features.
+	 *  @return total number of training instances processed */
+	private long trainSequentially(boolean averaging, boolean singlePass) {
+		// finalWeights will contain the average of the currentWeights vectors at all timesteps
+		PerceptronWeights weights;
+		CompiledCorpus compiled = null;
+		if (singlePass) {
+			try {
+				compiled = beginFeatureIndexing();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+			featureMajorLayout = true;
+			weights = new PerceptronWeights(labels.size()*Math.max(featureIndexes.size(),1024), averaging);
+			// (the weight vector must fit in a single array: see the check in the loop)
+			System.err.println("single pass: indexing features during the first iteration");
+		}
+		else
+			weights = initialWeights(averaging, false);
+		double truncation = opts().getDouble("truncate");
+		int truncateEvery = opts().getInt("truncate-every");
+		int nNonzero = -1;
 
-		for(int numIters=0;numIters<maxIters;numIters++){
+		long numWordsProcessed = 0;
+		long numWordsIncorrect=0;
+		long totalInstancesProcessed = 0;
+		
+		// checkpoints (see TrainingCheckpoint)
+		final String checkpointPath = (savePrefix!=null && (developmentMode || opts().getBoolean("checkpoint")) && !singlePass) ? savePrefix+".checkpoint" : null;
+		String resumePath = opts().getString("resume");
+		List<LabeledSentence> loadedOrder = null;	// in-memory training data in the order it was loaded
+		if ((checkpointPath!=null || resumePath!=null) && trainingData instanceof List)
+			loadedOrder = new ArrayList<LabeledSentence>((List<LabeledSentence>)trainingData);
+		int firstIter = 0;
+		if (resumePath!=null) {
+			TrainingCheckpoint checkpoint = null;
+			try {
+				checkpoint = TrainingCheckpoint.read(resumePath);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+			if (!checkpoint.featureIndexes.equals(featureIndexes) || checkpoint.weights.size()!=finalWeights.length 
+				|| checkpoint.weights.isAveraging()!=averaging) {
+				System.err.println("The checkpoint "+resumePath+" was written with different training data or options");
+				System.exit(1);
+			}
+			weights = checkpoint.weights;
+			rgen = checkpoint.rgen;
+			if (loadedOrder!=null)
+				checkpoint.restoreOrder((List<LabeledSentence>)trainingData, loadedOrder);
+			firstIter = checkpoint.iterationsCompleted;
+			totalInstancesProcessed = checkpoint.instancesProcessed;
+			System.err.println("resuming training from "+resumePath+" after "+firstIter+" iterations ("+totalInstancesProcessed+" instances)");
+		}
+		double[] currentWeights = weights.getCurrent();
+		
+		//long trainingDataSize = 0;
+
+		for(int numIters=firstIter;numIters<maxIters;numIters++){
 			System.err.println("iter="+numIters);
 			
-			// shuffle the training data if not reading it incrementally
-			if (trainingData instanceof List)
-				Collections.shuffle((List)trainingData,rgen);
+			boolean indexing = singlePass && numIters==0;
+			if (!indexing || trainingData instanceof List)	// shuffling data on disk would require an extra pass
+				shuffleTrainingData();
 			
 			int nWeightUpdates = 0;
+			int nSent = 0;
 			for(LabeledSentence sent : trainingData){
+				if (indexing) {
+					try {
+						indexSentence(sent, compiled);
+					} catch (IOException ex) {
+						ex.printStackTrace();
+						System.exit(1);
+					}
+					long size = (long)labels.size()*featureIndexes.size();
+					if (!ChunkedWeights.fitsInArray(size))
+						throw new RuntimeException("The weight vector ("+size+" weights) is too large for a single array, as required for --single-pass");
+					weights.ensureSize((int)size);
+					currentWeights = weights.getCurrent();
+					nSent++;
+				}
 				if(perceptron){
 					findBestLabelSequenceViterbi(sent, currentWeights);
-					nWeightUpdates += perceptronUpdate(sent, currentWeights, totalInstancesProcessed, finalWeights);
-					// will update currentWeights as well as running average in finalWeights
+					nWeightUpdates += perceptronUpdate(sent, weights);
+					// will update currentWeights as well as the averaging accumulators
 				}else{
 					throw new RuntimeException("MIRA is not currently supported");
 					/*findBestLabelSequenceViterbi(sent, intermediateWeights, true);
@@ -630,6 +1330,9 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 				}
 				numWordsProcessed+=sent.length();
 				totalInstancesProcessed++;
+				weights.endInstance();
+				if (truncation>0 && totalInstancesProcessed%truncateEvery==0)
+					nNonzero = weights.truncate(truncation*truncateEvery);
 				//System.out.println("size of weights:" + finalWeights.length);
 /*				for(int f=0;f<finalWeights.length;f++){
 
@@ -647,40 +1350,450 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 			
 			//trainingDataSize = totalInstancesProcessed / (numIters+1);
 			
-			if(developmentMode){
-				//double normalizer = ((double)numIters+1) * trainingDataSize;
-				//multiplyByScalar(finalWeights, 1.0/normalizer);	// averaging
-				test();
-				if(savePrefix != null) {
-					if (!averaging)
-						finalWeights = currentWeights;
-					
-					saveModel(savePrefix+"."+numIters);
+			if (indexing) {
+				weights.resize(labels.size()*featureIndexes.size());
+				currentWeights = weights.getCurrent();
+				finalWeights = new double[currentWeights.length];
+				System.err.println("indexed features of "+nSent+" sentences: "+labels.size()+" labels, "+featureIndexes.size()+" lifted features, size "+finalWeights.length+" weight vector");
+				if (compiled!=null) {
 					try {
-						PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(savePrefix+"."+numIters+".weights")));
-						printWeights(out, currentWeights);	// note: the serialized model, but not the printed model, has averaging
-						out.close();
-					} catch (FileNotFoundException ex) {
+						compiled.finish();
+					} catch (IOException ex) {
 						ex.printStackTrace();
+						System.exit(1);
 					}
+					trainingData = compiled;
 				}
-				//multiplyByScalar(finalWeights, normalizer);	// undo the averaging
+				saveFeatureList();
+			}
+			
+			if(developmentMode || devEvaluator!=null){
+				weights.averageInto(finalWeights);
+				evaluateIteration(numIters, currentWeights);
+			}
+			
+			if (checkpointPath!=null) {
+				int[] order = (loadedOrder!=null) ? TrainingCheckpoint.order((List<LabeledSentence>)trainingData, loadedOrder) : null;
+				final TrainingCheckpoint checkpoint = new TrainingCheckpoint(numIters+1, totalInstancesProcessed, weights, rgen, order, featureIndexes);
+				writeInBackground(numIters, new Runnable() {
+					public void run() {
+						try {
+							checkpoint.write(checkpointPath);
+						} catch (IOException ex) {
+							ex.printStackTrace();
+						}
+					}
+				});
 			}
 			
 			System.err.println("weight updates this iteration: "+nWeightUpdates);
+			if (nNonzero>=0)
+				System.err.println("nonzero weights after the last truncation: "+nNonzero+" of "+currentWeights.length);
 			if (nWeightUpdates==0) {
 				System.err.println("converged! stopping training");
 				break;
 			}
+			if (devEvaluator!=null && devEvaluator.shouldStop()) break;
 		}
 
-		if (!averaging)
-			finalWeights = currentWeights;
-
 		//average the weights for the "averaged" part of the averaged perceptron 
-		//double normalizer = (double)maxIters * trainingDataSize;
-		//multiplyByScalar(finalWeights, 1.0/normalizer);
-		if(savePrefix != null) saveModel(savePrefix);
+		weights.averageInto(finalWeights);
+		return totalInstancesProcessed;
+	}
+	
+	/**
+	 * Perceptron training by iterative parameter mixing (McDonald, Hall & Mann, 2010).
+	 * In each iteration the shuffled training data is split into numThreads shards, 
+	 * and a perceptron epoch is run over each shard in parallel, starting from the same weights. 
+	 * Each shard has its own weight vector and DP tables. At the end of the iteration 
+	 * the shards' weight vectors are mixed (averaged uniformly) to start the next one. 
+	 * With averaging, the final weights are the average over all instances in all shards.
+	 * @return total number of training instances processed
+	 */
+	private long trainByParameterMixing(int numThreads, boolean averaging) {
+		List<LabeledSentence> data = inMemoryTrainingData();
+		System.err.println("training with iterative parameter mixing over "+numThreads+" shards");
+		long totalInstancesProcessed = 0;
+		
+		final double[] mixedWeights = finalWeights.clone();	// the starting weights
+		PerceptronWeights[] shardWeights = new PerceptronWeights[numThreads];
+		DecoderContext[] shardContexts = new DecoderContext[numThreads];
+		for (int s=0; s<numThreads; s++) {
+			shardWeights[s] = new PerceptronWeights(finalWeights.length, averaging);
+			shardContexts[s] = new DecoderContext(labels.size());
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(int numIters=0;numIters<maxIters;numIters++){
+				System.err.println("iter="+numIters);
+				Collections.shuffle(data,rgen);
+				
+				long nWeightUpdates = trainShardsInParallel(pool, data, shardWeights, shardContexts, mixedWeights);
+				totalInstancesProcessed += data.size();
+				
+				// mix the shards' weights
+				Arrays.fill(mixedWeights, 0.0);
+				for (PerceptronWeights weights : shardWeights) {
+					double[] w = weights.getCurrent();
+					for (int f=0; f<w.length; f++)
+						mixedWeights[f] += w[f];
+				}
+				multiplyByScalar(mixedWeights, 1.0/numThreads);
+				
+				if(developmentMode || devEvaluator!=null){
+					averageShards(shardWeights, mixedWeights, finalWeights);
+					evaluateIteration(numIters, mixedWeights);
+				}
+				
+				System.err.println("weight updates this iteration: "+nWeightUpdates);
+				if (nWeightUpdates==0) {
+					System.err.println("converged! stopping training");
+					break;
+				}
+				if (devEvaluator!=null && devEvaluator.shouldStop()) break;
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		} finally {
+			pool.shutdown();
+		}
+		
+		averageShards(shardWeights, mixedWeights, finalWeights);
+		return totalInstancesProcessed;
+	}
+	
+	/**
+	 * Lock-free asynchronous perceptron training (cf. Hogwild!, Niu et al., 2011).
+	 * In each iteration the shuffled training data is split into numThreads shards, which are 
+	 * processed in parallel; each thread has its own DP tables but all of them decode with and 
+	 * update a single shared weight vector, without locking. Because updates only touch the 
+	 * features of mispredicted tokens, collisions between threads are rare.
+	 * Averaging uses a shared atomic instance counter.
+	 * @return total number of training instances processed
+	 */
+	private long trainHogwild(int numThreads, boolean averaging) {
+		List<LabeledSentence> data = inMemoryTrainingData();
+		System.err.println("training with "+numThreads+" threads sharing the weights (Hogwild)");
+		long totalInstancesProcessed = 0;
+		
+		PerceptronWeights weights = initialWeights(averaging, true);
+		PerceptronWeights[] shardWeights = new PerceptronWeights[numThreads];
+		DecoderContext[] shardContexts = new DecoderContext[numThreads];
+		for (int s=0; s<numThreads; s++) {
+			shardWeights[s] = weights;
+			shardContexts[s] = new DecoderContext(labels.size());
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			for(int numIters=0;numIters<maxIters;numIters++){
+				System.err.println("iter="+numIters);
+				Collections.shuffle(data,rgen);
+				
+				long nWeightUpdates = trainShardsInParallel(pool, data, shardWeights, shardContexts, null);
+				totalInstancesProcessed += data.size();
+				
+				if(developmentMode || devEvaluator!=null){
+					weights.averageInto(finalWeights);
+					evaluateIteration(numIters, weights.getCurrent());
+				}
+				
+				System.err.println("weight updates this iteration: "+nWeightUpdates);
+				if (nWeightUpdates==0) {
+					System.err.println("converged! stopping training");
+					break;
+				}
+				if (devEvaluator!=null && devEvaluator.shouldStop()) break;
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		} finally {
+			pool.shutdown();
+		}
+		
+		weights.averageInto(finalWeights);
+		return totalInstancesProcessed;
+	}
+	
+	/**
+	 * Mini-batch perceptron training. The training data is processed in batches of batchSize instances:
+	 * all instances in a batch are decoded with the same (frozen) weights, split across numThreads 
+	 * threads, and each thread sums the updates for its instances in a sparse accumulator. The 
+	 * accumulated updates are then merged into the weights in one step. With a batch size of 1 this 
+	 * is the standard perceptron. For averaging, the weights before the merge count for all but 
+	 * the last instance in the batch. Works with in-memory or --disk training data.
+	 * @return total number of training instances processed
+	 */
+	private long trainMiniBatch(int batchSize, int numThreads, boolean averaging) {
+		System.err.println("training with mini-batches of "+batchSize+" instances, decoded in "+numThreads+" thread(s)");
+		long totalInstancesProcessed = 0;
+		
+		PerceptronWeights weights = initialWeights(averaging, false);
+		final double[] currentWeights = weights.getCurrent();
+		SparseDelta[] deltas = new SparseDelta[numThreads];
+		DecoderContext[] contexts = new DecoderContext[numThreads];
+		for (int s=0; s<numThreads; s++) {
+			deltas[s] = new SparseDelta();
+			contexts[s] = new DecoderContext(labels.size());
+		}
+		
+		ExecutorService pool = (numThreads>1) ? Executors.newFixedThreadPool(numThreads) : null;
+		try {
+			for(int numIters=0;numIters<maxIters;numIters++){
+				System.err.println("iter="+numIters);
+				shuffleTrainingData();
+				
+				long nWeightUpdates = 0, numWordsIncorrect = 0, numWordsProcessed = 0;
+				List<LabeledSentence> batch = new ArrayList<LabeledSentence>(batchSize);
+				Iterator<LabeledSentence> it = trainingData.iterator();
+				while (it.hasNext()) {
+					batch.clear();
+					while (batch.size()<batchSize && it.hasNext()) {
+						LabeledSentence sent = it.next();
+						if (sent!=null) batch.add(sent);
+					}
+					if (batch.isEmpty()) break;
+					
+					// decode and compute updates with the weights frozen
+					List<long[]> counts = new ArrayList<long[]>();
+					if (pool==null)
+						counts.add(decodeAndAccumulate(batch, currentWeights, deltas[0], contexts[0]));
+					else {
+						List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+						int nParts = Math.min(numThreads, batch.size());
+						for (int s=0; s<nParts; s++) {
+							final List<LabeledSentence> part = batch.subList(s*batch.size()/nParts, (s+1)*batch.size()/nParts);
+							final SparseDelta delta = deltas[s];
+							final DecoderContext ctx = contexts[s];
+							results.add(pool.submit(new Callable<long[]>() {
+								public long[] call() {
+									return decodeAndAccumulate(part, currentWeights, delta, ctx);
+								}
+							}));
+						}
+						for (Future<long[]> result : results)
+							counts.add(result.get());
+					}
+					for (long[] c : counts) {
+						nWeightUpdates += c[0];
+						numWordsIncorrect += c[1];
+						numWordsProcessed += c[2];
+					}
+					
+					// merge the updates
+					for (int i=0; i<batch.size()-1; i++)
+						weights.endInstance();
+					for (SparseDelta delta : deltas) {
+						delta.applyTo(weights);
+						delta.clear();
+					}
+					weights.endInstance();
+					totalInstancesProcessed += batch.size();
+				}
+				System.err.println("pct. correct words in this iteration:"+NumberFormat.getInstance().format((double)(numWordsProcessed-numWordsIncorrect)/numWordsProcessed));
+				
+				if(developmentMode || devEvaluator!=null){
+					weights.averageInto(finalWeights);
+					evaluateIteration(numIters, currentWeights);
+				}
+				
+				System.err.println("weight updates this iteration: "+nWeightUpdates);
+				if (nWeightUpdates==0) {
+					System.err.println("converged! stopping training");
+					break;
+				}
+				if (devEvaluator!=null && devEvaluator.shouldStop()) break;
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		} finally {
+			if (pool!=null) pool.shutdown();
+		}
+		
+		weights.averageInto(finalWeights);
+		return totalInstancesProcessed;
+	}
+	
+	/**
+	 * Decodes each of the given sentences with the given (unchanging) weights and adds their 
+	 * perceptron updates to delta.
+	 * @return number of weight increments, number of mispredicted words, and number of words processed
+	 */
+	private long[] decodeAndAccumulate(List<LabeledSentence> sents, double[] weights, SparseDelta delta, DecoderContext ctx) {
+		long nWeightUpdates = 0, numWordsIncorrect = 0, numWordsProcessed = 0;
+		for (LabeledSentence sent : sents) {
+			findBestLabelSequenceViterbi(sent, weights, false, null, ctx);
+			nWeightUpdates += perceptronUpdate(sent, delta);
+			for(int j=0; j<sent.length(); j++){
+				if(!sent.getLabels().get(j).equals(sent.getPredictions().get(j))){
+					numWordsIncorrect++;
+				}
+			}
+			numWordsProcessed+=sent.length();
+		}
+		return new long[]{nWeightUpdates, numWordsIncorrect, numWordsProcessed};
+	}
+	
+	/** 
+	 * Randomizes the order of the training data for the next iteration. Training data that is 
+	 * read from disk is shuffled in blocks of --shuffle-block sentences (no shuffling if 0). 
+	 */
+	void shuffleTrainingData() {
+		if (trainingData instanceof List) {
+			Collections.shuffle((List)trainingData,rgen);
+			return;
+		}
+		int blockSize = opts().getInt("shuffle-block");
+		if (blockSize<1) return;
+		try {
+			if (trainingData instanceof CompiledCorpus)
+				((CompiledCorpus)trainingData).shuffle(rgen, blockSize);
+			else if (trainingData instanceof FeatureFileReader)
+				((FeatureFileReader)trainingData).shuffle(rgen, blockSize);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+	}
+	
+	/** The training data as a list, for modes that need to split it into shards. */
+	private List<LabeledSentence> inMemoryTrainingData() {
+		if (!(trainingData instanceof List)) {
+			System.err.println("Training with --threads requires the training data to be in memory (omit --disk)");
+			System.exit(1);
+		}
+		return (List<LabeledSentence>)trainingData;
+	}
+	
+	/**
+	 * Splits data into as many contiguous shards as there are entries in shardWeights and runs 
+	 * a training epoch over each shard in parallel, waiting for all of them to finish.
+	 * @param shardWeights weights for each shard; the same object may be given for several shards
+	 * @param startWeights if not null, each shard's current weights are first set to these
+	 * @return number of weight increments over all shards
+	 */
+	private long trainShardsInParallel(ExecutorService pool, List<LabeledSentence> data, PerceptronWeights[] shardWeights, 
+		DecoderContext[] shardContexts, final double[] startWeights) throws InterruptedException, ExecutionException {
+		int numShards = shardWeights.length;
+		List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+		for (int s=0; s<numShards; s++) {
+			final List<LabeledSentence> shard = data.subList(s*data.size()/numShards, (s+1)*data.size()/numShards);
+			final PerceptronWeights weights = shardWeights[s];
+			final DecoderContext ctx = shardContexts[s];
+			results.add(pool.submit(new Callable<long[]>() {
+				public long[] call() {
+					if (startWeights!=null)
+						weights.setCurrent(startWeights);
+					return trainEpoch(shard, weights, ctx);
+				}
+			}));
+		}
+		
+		long nWeightUpdates = 0, numWordsIncorrect = 0, numWordsProcessed = 0;
+		for (Future<long[]> result : results) {
+			long[] counts = result.get();
+			nWeightUpdates += counts[0];
+			numWordsIncorrect += counts[1];
+			numWordsProcessed += counts[2];
+		}
+		System.err.println("pct. correct words in this iteration:"+NumberFormat.getInstance().format((double)(numWordsProcessed-numWordsIncorrect)/numWordsProcessed));
+		return nWeightUpdates;
+	}
+	
+	/** Writes the average of the weight vectors at all timesteps of all shards into out 
+	 *  (or the mixed weights, if not averaging). */
+	private static void averageShards(PerceptronWeights[] shardWeights, double[] mixedWeights, double[] out) {
+		if (!shardWeights[0].isAveraging()) {
+			System.arraycopy(mixedWeights, 0, out, 0, out.length);
+			return;
+		}
+		Arrays.fill(out, 0.0);
+		long timesteps = 0;
+		for (PerceptronWeights weights : shardWeights) {
+			weights.addSumsTo(out);
+			timesteps += weights.getTimestep();
+		}
+		if (timesteps==0) {
+			System.arraycopy(mixedWeights, 0, out, 0, out.length);
+			return;
+		}
+		for (int f=0; f<out.length; f++)
+			out[f] /= timesteps;
+	}
+	
+	/**
+	 * Runs one pass of perceptron training over the given sentences, 
+	 * updating only the given weights and DP tables (so that separate passes can run concurrently).
+	 * @return number of weight increments, number of mispredicted words, and number of words processed
+	 */
+	private long[] trainEpoch(Iterable<LabeledSentence> sents, PerceptronWeights weights, DecoderContext ctx) {
+		return trainEpoch(sents, weights, weights, ctx);
+	}
+	
+	/**
+	 * As {@link #trainEpoch(Iterable,PerceptronWeights,DecoderContext)}, but updates are passed to 
+	 * updater, which must apply them to weights (and may also record them).
+	 */
+	long[] trainEpoch(Iterable<LabeledSentence> sents, PerceptronWeights weights, WeightUpdater updater, DecoderContext ctx) {
+		long nWeightUpdates = 0, numWordsIncorrect = 0, numWordsProcessed = 0;
+		for(LabeledSentence sent : sents){
+			findBestLabelSequenceViterbi(sent, weights.getCurrent(), false, null, ctx);
+			nWeightUpdates += perceptronUpdate(sent, updater);
+			for(int j=0; j<sent.length(); j++){
+				if(!sent.getLabels().get(j).equals(sent.getPredictions().get(j))){
+					numWordsIncorrect++;
+				}
+			}
+			numWordsProcessed+=sent.length();
+			weights.endInstance();
+		}
+		return new long[]{nWeightUpdates, numWordsIncorrect, numWordsProcessed};
+	}
+	
+	/**
+	 * In development mode, evaluates the model after an iteration of training on the test data (if any) 
+	 * and saves it (if there is a save prefix). finalWeights must already hold the weights to evaluate.
+	 * The files are written in the background from a snapshot of the model (see writeInBackground()), 
+	 * which is also evaluated in the background if there is a DevEvaluator.
+	 * @param currentWeights unaveraged weights, which are the ones printed
+	 */
+	void evaluateIteration(int numIters, double[] currentWeights) {
+		evaluateIteration(numIters, new DenseWeights(currentWeights.clone()));	// a snapshot, as it is printed in the background
+	}
+	
+	/** @param currentWeights if TrainableWeights (which further training modifies), they are printed 
+	 *  before returning; otherwise they must not be modified */
+	void evaluateIteration(int numIters, final WeightVector currentWeights) {
+		final DiscriminativeTagger model = (savePrefix!=null || devEvaluator!=null) ? snapshotModel(true) : null;
+		if (devEvaluator!=null)
+			devEvaluator.submit(numIters, model);
+		else
+			test();
+		if(savePrefix != null) {
+			final String path = savePrefix+"."+numIters;
+			final boolean live = currentWeights instanceof TrainableWeights;
+			if (live) writeWeights(path+".weights", currentWeights);
+			writeInBackground(numIters, new Runnable() {
+				public void run() {
+					writeModel(model, path);
+					if (!live) writeWeights(path+".weights", currentWeights);
+				}
+			});
+		}
+	}
+	
+	private void writeWeights(String path, WeightVector weights) {
+		try {
+			PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)));
+			printWeights(out, weights);	// note: the serialized model, but not the printed model, has averaging
+			out.close();
+		} catch (FileNotFoundException ex) {
+			ex.printStackTrace();
+		}
 	}
 
 	private void multiplyByScalar(double[] weights, double scalar) {
@@ -689,8 +1802,24 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 		}
 	}
 
-	private int getGroundedFeatureIndex(int liftedFeature, int label) {
-		return liftedFeature + label*featureIndexes.size();
+	/** Index of the weight of a lifted feature for a label. 
+	 *  (A long, as the number of weights may exceed the range of int: see ChunkedWeights.) */
+	private long getGroundedFeatureIndex(int liftedFeature, int label) {
+		if (featureMajorLayout)
+			return (long)liftedFeature*labels.size() + label;
+		return liftedFeature + (long)label*featureIndexes.size();
+	}
+	
+	/** Converts a weight vector from the feature-major layout used during single-pass training 
+	 *  to the standard (label-major) layout. */
+	private double[] toLabelMajor(double[] weights) {
+		int nLabels = labels.size();
+		int nFeats = featureIndexes.size();
+		double[] res = new double[nLabels*nFeats];
+		for (int f=0; f<nFeats; f++)
+			for (int l=0; l<nLabels; l++)
+				res[f + l*nFeats] = weights[f*nLabels + l];
+		return res;
 	}
 
 
@@ -702,17 +1831,16 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * this method breaks down the process so that the changes are made token by token 
 	 * 
 	 * @param sent
-	 * @param currentWeights Latest value of the parameter vector
-	 * @param timestep Number of previous updates that have been applied
-	 * @param runningAverageWeights Average of the 'timestep' previous weight vectors
-	 * @return Number of weights updated
+	 * @param weights Receives the changes: either the parameter vector itself (with its averaging 
+	 * accumulators, if any), or an accumulator of changes to be applied later
+	 * @return Number of weight increments applied
 	 */
-	private int perceptronUpdate(LabeledSentence sent, double[] currentWeights, long timestep, double[] runningAverageWeights) {
+	private int perceptronUpdate(LabeledSentence sent, WeightUpdater weights) {
 		if(sent.predictionsAreCorrect()){
 			return 0;
 		}
 		
-		Set<Integer> updates = new HashSet<Integer>();
+		int nUpdates = 0;
 		
 		for(int i=0; i<sent.length(); i++) {	// for each token position, update weights if misclassified
 			int pred = labels.indexOf(sent.getPredictions().get(i));
@@ -729,62 +1857,54 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 			
 			// - zero-order features
 			{
-				int[][] relevantFeatureIndices = new int[1][];	// will contain a single array set by the feature extractor
-				featureValues = ArabicFeatureExtractor.getInstance().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, false, false);
-				relevantFeatures = relevantFeatureIndices[0];
+				double[][] relevantFeatureValues = new double[1][];
+				relevantFeatures = zeroOrderFeatures(sent, i, relevantFeatureValues);
+				featureValues = relevantFeatureValues[0];
 			}
 			
 			if (relevantFeatures.length==0) throw new RuntimeException("No features found for this token");
 			
 			for (int h=0; h<relevantFeatures.length; h++){
-				int featIndex = getGroundedFeatureIndex(relevantFeatures[h], gold);
-				currentWeights[featIndex] += featureValues[h];
-				updates.add(featIndex);
+				long featIndex = getGroundedFeatureIndex(relevantFeatures[h], gold);
+				weights.add(featIndex, (featureValues==null) ? 1.0 : featureValues[h]);
+				nUpdates++;
 
 			}
 			
 			// - first-order features
-			if (ArabicFeatureExtractor.getInstance().hasFirstOrderFeatures() && i>0) {
+			if (featureExtractor().hasFirstOrderFeatures() && i>0) {
 				hasFirstOrderFeat = true;
-				int[] firstOrderFeats = ArabicFeatureExtractor.getInstance().extractFirstOrderFeatures(sent, i, featureIndexes, false, false);
+				int[] firstOrderFeats = featureExtractor().extractFirstOrderFeatures(sent, i, featureIndexes, false, false);
 				int firstOrderFeat = firstOrderFeats[0];
-				int featIndex = getGroundedFeatureIndex(firstOrderFeat,gold);
+				long featIndex = getGroundedFeatureIndex(firstOrderFeat,gold);
 				// this is assumed to be a binary feature
-				currentWeights[featIndex] += 1.0;
-				updates.add(featIndex);
+				weights.add(featIndex, 1.0);
+				nUpdates++;
 			}
 			
 			// update predicted label feature weights
 			
-			// - zero-order features
-			{
-				int[][] relevantFeatureIndices = new int[1][];	// will contain a single array set by the feature extractor
-				featureValues = ArabicFeatureExtractor.getInstance().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, true, false);
-				relevantFeatures = relevantFeatureIndices[0];
-			}
+			// - zero-order features (the same as for the gold label)
 			
 			for (int h=0; h<relevantFeatures.length; h++){
-				int featIndex = getGroundedFeatureIndex(relevantFeatures[h],pred);
-				currentWeights[featIndex] -= featureValues[h];
-				updates.add(featIndex);
+				long featIndex = getGroundedFeatureIndex(relevantFeatures[h],pred);
+				weights.add(featIndex, (featureValues==null) ? -1.0 : -featureValues[h]);
+				nUpdates++;
 			}
 			
 			// - first-order features
 			if (hasFirstOrderFeat) {
-				int[] firstOrderFeats = ArabicFeatureExtractor.getInstance().extractFirstOrderFeatures(sent, i, featureIndexes, true, false);
+				int[] firstOrderFeats = featureExtractor().extractFirstOrderFeatures(sent, i, featureIndexes, true, false);
 				int firstOrderFeat = firstOrderFeats[0];
-				int featIndex = getGroundedFeatureIndex(firstOrderFeat,pred);
+				long featIndex = getGroundedFeatureIndex(firstOrderFeat,pred);
 				// this is assumed to be a binary feature
-				currentWeights[featIndex] -= 1.0;
-				updates.add(featIndex);
+				weights.add(featIndex, -1.0);
+				nUpdates++;
 			}
 			
 		}
 		
-		for (int featIndex : updates)	// update running averages to reflect changed weights
-			runningAverageWeights[featIndex] = (timestep*runningAverageWeights[featIndex] + currentWeights[featIndex])/(timestep+1);
-		
-		return updates.size();
+		return nUpdates;
 	}
 
 
@@ -907,25 +2027,48 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 
 	public void test(){
-		test(finalWeights);
+		test(modelWeights());
 	}
 
 	public void test(double[] weights){
+		test(new DenseWeights(weights));
+	}
+
+	/** @return the overall F1 score (see evaluatePredictions()), or NaN if there is no test data */
+	double test(WeightVector weights){
 
-		if(testData == null) return;
-		for(LabeledSentence sent: testData){	
-			findBestLabelSequenceViterbi(sent, weights);
+		if(testData == null) return Double.NaN;
+		return evaluate(testData, weights, defaultDecoderContext(), System.err);
+	}
+	
+	/**
+	 * Decodes the given sentences with the given weights and DP tables, and evaluates the predictions, 
+	 * printing the scores to out.
+	 * @return the overall F1 score
+	 */
+	double evaluate(List<LabeledSentence> data, WeightVector weights, DecoderContext ctx, PrintStream out) {
+		SegmentedLRUCache<String,double[]> cache = newEmissionScoreCache();
+		for(LabeledSentence sent: data){	
+			findBestLabelSequenceViterbi(sent, weights, false, cache, ctx);
 		}
+		if (cache!=null)
+			out.println("emission score cache: "+cache);
 
-		evaluatePredictions(testData, labels);
+		return evaluatePredictions(data, labels, out);
 	}
 
 	public void printPredictions(List<LabeledSentence> data, double[] weights){
+		printPredictions(data, new DenseWeights(weights));
+	}
+
+	void printPredictions(List<LabeledSentence> data, WeightVector weights){
 		if(data == null) return;
+		SegmentedLRUCache<String,double[]> cache = newEmissionScoreCache();
 		for(LabeledSentence sent: data){	
-			findBestLabelSequenceViterbi(sent, weights);
+			findBestLabelSequenceViterbi(sent, weights, false, cache);
 			System.out.println(sent.taggedString());
 		}
+		reportEmissionScoreCache(cache);
 	}
 	
 	/** Loads data from the specified file and prints predictions for it on a per-sentence basis. 
@@ -933,16 +2076,83 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 *  so as to scale to large test files.)
 	 */
 	public void printPredictions(String path, List<String> labels, double[] weights) {
+		printPredictions(path, labels, new DenseWeights(weights));
+	}
+
+	void printPredictions(String path, List<String> labels, WeightVector weights) {
 		try {
 			System.err.print("writing predictions for "+path);
 			int nSent = 0;
-			for (LabeledSentence sent : new FeatureFileReader(new File(path), labels, binaryFeats, true)) {
-				findBestLabelSequenceViterbi(sent, weights);
+			SegmentedLRUCache<String,double[]> cache = newEmissionScoreCache();
+			FeatureFileReader rdr = new FeatureFileReader(new File(path), labels, binaryFeats, true, featureExtractor().excludeFeatNums);
+			rdr.setPrefetch(opts().getInt("prefetch"), (opts().getBoolean("debug")) ? "test data reader" : null);
+			for (LabeledSentence sent : rdr) {
+				findBestLabelSequenceViterbi(sent, weights, false, cache);
  				System.out.println(sent.taggedString());
  				if (nSent%1000==0) System.err.print(".");
  				nSent++;
 			}
 			System.err.println(" done");
+			reportEmissionScoreCache(cache);
+			
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Makes predictions with several models in a single pass over a feature file, printing each 
+	 * sentence with the predictions of each model in a column of its own (after the token and gold 
+	 * label columns). Each sentence is read and parsed once, and the zero-order features of each 
+	 * token are extracted once (as feature names) and looked up in the feature index of each model.
+	 * The gold labels are read with the labels of the first model.
+	 */
+	static void printPredictions(String path, List<DiscriminativeTagger> models) {
+		try {
+			System.err.print("writing predictions of "+models.size()+" models for "+path);
+			int nSent = 0;
+			DiscriminativeTagger first = models.get(0);
+			List<SegmentedLRUCache<String,double[]>> caches = new ArrayList<SegmentedLRUCache<String,double[]>>();
+			for (DiscriminativeTagger model : models)
+				caches.add(model.newEmissionScoreCache());
+			FeatureFileReader rdr = new FeatureFileReader(new File(path), first.labels, first.binaryFeats, true, first.featureExtractor().excludeFeatNums);
+			rdr.setPrefetch(_opts.getInt("prefetch"), (_opts.getBoolean("debug")) ? "test data reader" : null);
+			List<LabeledSentence> decoded = new ArrayList<LabeledSentence>(models.size());
+			for (LabeledSentence sent : rdr) {
+				List<Map<String,Double>> tokenFeatures = new ArrayList<Map<String,Double>>(sent.length());
+				for (int i=0; i<sent.length(); i++)
+					tokenFeatures.add(first.featureExtractor().extractZeroOrderFeatureMap(sent, i));
+				
+				decoded.clear();
+				for (int m=0; m<models.size(); m++) {
+					DiscriminativeTagger model = models.get(m);
+					List<int[]> compiled = new ArrayList<int[]>(sent.length());
+					for (Map<String,Double> featureMap : tokenFeatures) {
+						int[][] relevantFeatureIndices = new int[1][];
+						double[] featureVals = ArabicFeatureExtractor.indexFeatures(featureMap, model.featureIndexes, relevantFeatureIndices, false);
+						for (double v : featureVals)
+							if (v!=1.0) throw new RuntimeException("Predicting with several models at once requires binary features");
+						compiled.add(relevantFeatureIndices[0]);
+					}
+					LabeledSentence copy = sent.copyForDecoding(compiled);
+					model.findBestLabelSequenceViterbi(copy, model.modelWeights(), false, caches.get(m));
+					decoded.add(copy);
+				}
+				
+				StringBuilder sb = new StringBuilder();
+				for (int i=0; i<sent.length(); i++) {
+					sb.append(sent.getTokens().get(i)).append('\t').append(sent.getLabels().get(i));
+					for (LabeledSentence copy : decoded)
+						sb.append('\t').append(copy.getPredictions().get(i));
+					sb.append('\n');
+				}
+				System.out.println(sb);
+ 				if (nSent%1000==0) System.err.print(".");
+ 				nSent++;
+			}
+			System.err.println(" done");
+			for (SegmentedLRUCache<String,double[]> cache : caches)
+				reportEmissionScoreCache(cache);
 			
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -956,8 +2166,14 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * not just single tokens (e.g., States).
 	 *  
 	 * @param sentences
+	 * @return the overall F1 score
 	 */
-	public static void evaluatePredictions(List<LabeledSentence> sentences, List<String> labels){
+	public static double evaluatePredictions(List<LabeledSentence> sentences, List<String> labels){
+		return evaluatePredictions(sentences, labels, System.err);
+	}
+	
+	/** As {@link #evaluatePredictions(List,List)}, printing the scores to out. */
+	static double evaluatePredictions(List<LabeledSentence> sentences, List<String> labels, PrintStream out){
 		Map<String, Long> numPredicted = new HashMap<String, Long>();
 		Map<String, Long> numGold = new HashMap<String, Long>();
 		Map<String, Long> numCorrect = new HashMap<String, Long>();
@@ -1067,13 +2283,13 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 			double p = (double)numCorrect.get(label)/numPredicted.get(label);
 			double r = (double)numCorrect.get(label)/numGold.get(label);
 			double g = (double)numGold.get(label);
-			System.err.println(label+"\tF1:\t"+(2*p*r/(p+r)+"\tP:\t"+p+"\tR:\t"+r+"\tnumGold:\t"+g));
+			out.println(label+"\tF1:\t"+(2*p*r/(p+r)+"\tP:\t"+p+"\tR:\t"+r+"\tnumGold:\t"+g));
 		}
 		double p = (double)numCorrect.get("all")/numPredicted.get("all");
 		double r = (double)numCorrect.get("all")/numGold.get("all");
 		double g = (double)numGold.get("all");
-		System.err.println("all\tF1:\t"+(2*p*r/(p+r)+"\tP:\t"+p+"\tR:\t"+r+"\tnumGold:\t"+g));
-
+		out.println("all\tF1:\t"+(2*p*r/(p+r)+"\tP:\t"+p+"\tR:\t"+r+"\tnumGold:\t"+g));
+		return 2*p*r/(p+r);
 	}
 
 
@@ -1082,7 +2298,7 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * used by the Viterbi algorithm
 	 * 
 	 */
-	private void createDPTables() {
+	void createDPTables() {
 
 		int maxNumTokens = 0;
 
@@ -1097,6 +2313,33 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 		maxNumTokens = 200;
 		dpValues = new double[maxNumTokens][labels.size()];
 		dpBackPointers = new int[maxNumTokens][labels.size()];
+		decoderContext = new DecoderContext(dpValues, dpBackPointers);
+	}
+
+	/** The DP tables of this tagger, for decoding on a single thread. */
+	DecoderContext defaultDecoderContext() {
+		if (decoderContext==null) {	// e.g., the model was deserialized
+			if (dpValues==null) createDPTables();
+			else decoderContext = new DecoderContext(dpValues, dpBackPointers);
+		}
+		return decoderContext;
+	}
+
+
+	/**
+	 * Zero-order features of token i in a sentence: returns their (lifted) indices, and sets 
+	 * featureValues[0] to the parallel array of values--or to null for a compiled sentence, 
+	 * whose features all have value 1.
+	 */
+	private int[] zeroOrderFeatures(LabeledSentence sent, int i, double[][] featureValues) {
+		List<int[]> compiled = sent.getCompiledFeatures();
+		if (compiled!=null) {
+			featureValues[0] = null;
+			return compiled.get(i);
+		}
+		int[][] relevantFeatureIndices = new int[1][];	// will contain a single array set by the feature extractor
+		featureValues[0] = featureExtractor().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, true, false);
+		return relevantFeatureIndices[0];
 	}
 
 
@@ -1104,12 +2347,12 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * compute a dot product of a set of feature values and the corresponding weights.
 	 * This involves looking up the appropriate indexes into the weight vector.
 	 * 
-	 * @param featureValues
+	 * @param featureValues null if all features have value 1
 	 * @param weights
 	 * @param i
 	 * @return
 	 */
-	private double computeScore(int[] relevantFeatureIndices, double[] featureValues, double[] weights, int labelIndex) {
+	private double computeScore(int[] relevantFeatureIndices, double[] featureValues, WeightVector weights, int labelIndex) {
 		double dotProduct = 0.0;
 		
 		if(labelIndex==-1){
@@ -1118,9 +2361,9 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 		
 		for(int h=0; h<relevantFeatureIndices.length; h++){
 			int index = relevantFeatureIndices[h];
-			double val = featureValues[h];
+			double val = (featureValues==null) ? 1.0 : featureValues[h];
 			//if(index != null){ //test set features may not have been instantiated from the training data
-				double weight = weights[getGroundedFeatureIndex(index,labelIndex)];
+				double weight = weights.get(index,labelIndex);
 				dotProduct += weight*val;
 			//}
 		}
@@ -1134,13 +2377,85 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * once to instantiate all the possible features,
 	 * so we don't have to worry about null in the HashMaps
 	 * 
+	 * If the training data is read from disk (rather than held in memory), 
+	 * it is compiled in the same pass (see {@link CompiledCorpus}) unless --no-compile 
+	 * is given; the compiled corpus is then returned for use in training.
 	 */
-	private Iterable<LabeledSentence> createFeatures() throws IOException {
+	Iterable<LabeledSentence> createFeatures() throws IOException {
 		System.err.print("instantiating features");
-		lastFeatureIndex = 0;
+		CompiledCorpus compiled = beginFeatureIndexing();
+		
+		// instantiate the rest of the features
+		int nSent = 0;
+		for(LabeledSentence sent : trainingData){
+			indexSentence(sent, compiled);
+			if (nSent%1000==0) System.err.print(".");
+			nSent++;
+		}
+
+		allocateWeights();
+		long nWeights = (long)labels.size()*featureIndexes.size();
+		System.err.println(" done with "+nSent+" sentences: "+labels.size()+" labels, "+featureIndexes.size()+" lifted features, size "+nWeights+" weight vector");
+		
+		if (compiled!=null) {
+			compiled.finish();
+			return compiled;
+		}
+		return trainingData;
+	}
+	
+	/** Creates the array of feature weights (unless they are to be stored otherwise: see train()). */
+	private void allocateWeights() {
+		long nWeights = (long)labels.size()*featureIndexes.size();
+		finalWeights = (featureCounts==null && !opts().getBoolean("chunked-weights") && ChunkedWeights.fitsInArray(nWeights)) ? new double[(int)nWeights] : null;
+	}
+	
+	/**
+	 * Indexes the features of the (in-memory) training data, as createFeatures() does, and returns 
+	 * compiled copies of its sentences, which hold the zero-order feature indices of each token 
+	 * (see {@link LabeledSentence#addCompiledToken}). Other taggers with the same feature extraction 
+	 * options can then be trained on them with this tagger's feature index (see setCompiledTrainingData()) 
+	 * without extracting the features again.
+	 */
+	List<LabeledSentence> compileTrainingData() throws IOException {
+		System.err.print("compiling training data");
+		beginFeatureIndexing();
+		List<LabeledSentence> res = new ArrayList<LabeledSentence>();
+		for(LabeledSentence sent : trainingData){
+			List<int[]> tokenFeatures = indexSentence(sent, true);
+			LabeledSentence compiled = new LabeledSentence();
+			for (int i=0; i<sent.length(); i++)
+				compiled.addCompiledToken(tokenFeatures.get(i), sent.getLabels().get(i));
+			res.add(compiled);
+			if (res.size()%1000==0) System.err.print(".");
+		}
+		featureCounts = null;
+		System.err.println(" done with "+res.size()+" sentences: "+labels.size()+" labels, "+featureIndexes.size()+" lifted features");
+		return res;
+	}
+	
+	/**
+	 * Sets training data compiled by compileTrainingData() (possibly by another tagger), along with 
+	 * the feature index it was compiled with, so that train() does not index features. The feature 
+	 * index is only read, unless the model is pruned after training (--prune or --truncate).
+	 */
+	void setCompiledTrainingData(List<LabeledSentence> compiled, Map<String,Integer> featureIndexes) {
+		this.trainingData = compiled;
+		this.featureIndexes = featureIndexes;
+		lastFeatureIndex = featureIndexes.size();
+		featuresIndexed = true;
+	}
+	
+	/** 
+	 * Indexes the features that do not depend on the data (previous-label features), and 
+	 * creates the compiled corpus if the training data is to be compiled (otherwise returns null). 
+	 */
+	private CompiledCorpus beginFeatureIndexing() throws IOException {
+		lastFeatureIndex = featureIndexes.size();	// 0 unless adding to the features of a loaded model
+		featureCounts = (opts().getInt("sparse-weights")>0) ? new int[1024] : null;
 
 		// instantiate first-order features for all possible previous labels
-		Set<Integer> firstOrderFeats = (ArabicFeatureExtractor.getInstance().hasFirstOrderFeatures()) ? new HashSet<Integer>() : null;
+		Set<Integer> firstOrderFeats = (featureExtractor().hasFirstOrderFeatures()) ? new HashSet<Integer>() : null;
 		
 		// create a feature for each label as the previous label, even if not using 
 		// first-order features (otherwise it will mess up the cache file format)
@@ -1157,36 +2472,57 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 			}
 		}
 		
-//		List<LabeledSentence> trainingDataList = null;	// new LinkedList<LabeledSentence>();
-		
-		// instantiate the rest of the features
-		int nSent = 0;
-		for(LabeledSentence sent : trainingData){
-			for(int i=0; i<sent.length(); i++){
-				if(i>0) sent.getPredictions().set(i-1, sent.getLabels().get(i-1));
-				final boolean addNewFeatures = true;
-				int[][] relevantFeatureIndices = new int[1][];
-				double[] featureVals = ArabicFeatureExtractor.getInstance().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, false, addNewFeatures);
-				
-				// extract first-order features to make sure they're indexed but don't do anything with them
-				ArabicFeatureExtractor.getInstance().extractFirstOrderFeatures(sent, i, featureIndexes, false, addNewFeatures);
+		CompiledCorpus compiled = null;
+		if (!(trainingData instanceof List) && !opts().getBoolean("no-compile")) {
+			File compiledFile;
+			if (opts().getString("compiled-corpus")!=null)
+				compiledFile = new File(opts().getString("compiled-corpus"));
+			else {
+				compiledFile = File.createTempFile("arabic-tagger", ".compiled");
+				compiledFile.deleteOnExit();
 			}
+			long budget = (opts().contains("corpus-memory")) ? ((long)opts().getInt("corpus-memory"))<<20 : Runtime.getRuntime().maxMemory()/4;
+			compiled = new CompiledCorpus(compiledFile, labels, budget);
+		}
+		return compiled;
+	}
+	
+	/** Indexes the features of a training sentence, adding it to the compiled corpus if not null. */
+	private void indexSentence(LabeledSentence sent, CompiledCorpus compiled) throws IOException {
+		List<int[]> tokenFeatures = indexSentence(sent, compiled!=null);
+		if (compiled!=null) compiled.add(sent, tokenFeatures);
+	}
+	
+	/** 
+	 * Indexes the features of a training sentence.
+	 * @return if compile is true, the zero-order feature indices of each token, else null 
+	 */
+	private List<int[]> indexSentence(LabeledSentence sent, boolean compile) {
+		List<int[]> tokenFeatures = (compile) ? new ArrayList<int[]>(sent.length()) : null;
+		for(int i=0; i<sent.length(); i++){
+			if(i>0) sent.getPredictions().set(i-1, sent.getLabels().get(i-1));
+			final boolean addNewFeatures = true;
+			int[][] relevantFeatureIndices = new int[1][];
+			double[] featureVals = featureExtractor().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, false, addNewFeatures);
 			
-// 			if (trainingDataList!=null) {
-// 				trainingDataList.add(new LabeledSentence(relevantFeatures, featureValues, sent.getLabels(), _firstOrderFeats));
-// 			}
+			// extract first-order features to make sure they're indexed but don't do anything with them
+			int[] firstOrderFeatureIndices = featureExtractor().extractFirstOrderFeatures(sent, i, featureIndexes, false, addNewFeatures);
 			
-			if (nSent%1000==0) System.err.print(".");
-			nSent++;
+			if (featureCounts!=null) {
+				if (featureCounts.length<featureIndexes.size())
+					featureCounts = Arrays.copyOf(featureCounts, Math.max(featureIndexes.size(), 2*featureCounts.length));
+				for (int f : relevantFeatureIndices[0]) featureCounts[f]++;
+				if (firstOrderFeatureIndices!=null)
+					for (int f : firstOrderFeatureIndices) featureCounts[f]++;
+			}
+			
+			if (tokenFeatures!=null) {
+				for (double v : featureVals)
+					if (v!=1.0) throw new RuntimeException("Compiling the training data requires binary features (use --no-compile)");
+				tokenFeatures.add(relevantFeatureIndices[0]);
+			}
 		}
-
-		//now create the array of feature weights
-		int nWeights = labels.size()*featureIndexes.size();
-		finalWeights = new double[nWeights];
-		System.err.println(" done with "+nSent+" sentences: "+labels.size()+" labels, "+featureIndexes.size()+" lifted features, size "+finalWeights.length+" weight vector");
-		
-//		return trainingDataList;
-		return trainingData;
+		return tokenFeatures;
 	}
 
 	
@@ -1222,6 +2558,43 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 		findBestLabelSequenceViterbi(sent, weights, false); 
 	}
 
+	public void findBestLabelSequenceViterbi(LabeledSentence sent, double [] weights, boolean includeLossTerm){
+		findBestLabelSequenceViterbi(sent, weights, includeLossTerm, null);
+	}
+
+	/**
+	 * Creates a cache mapping token contexts (see {@link ArabicFeatureExtractor#zeroOrderContextKey})
+	 * to their zero-order scores for every label. Such scores only stay valid while the weights 
+	 * are fixed, so a new cache should be created for each round of decoding (never during training).
+	 * @return null if caching is disabled with --cache-size 0
+	 */
+	private SegmentedLRUCache<String,double[]> newEmissionScoreCache() {
+		int cacheSize = opts().getInt("cache-size");
+		if (cacheSize<=0) return null;
+		return new SegmentedLRUCache<String,double[]>(Math.max(cacheSize,2));
+	}
+
+	private static void reportEmissionScoreCache(SegmentedLRUCache<String,double[]> cache) {
+		if (cache!=null)
+			System.err.println("emission score cache: "+cache);
+	}
+
+
+	public void findBestLabelSequenceViterbi(LabeledSentence sent, double [] weights, boolean includeLossTerm, 
+		SegmentedLRUCache<String,double[]> emissionScoreCache){
+		findBestLabelSequenceViterbi(sent, weights, includeLossTerm, emissionScoreCache, defaultDecoderContext());
+	}
+
+	public void findBestLabelSequenceViterbi(LabeledSentence sent, double [] weights, boolean includeLossTerm, 
+		SegmentedLRUCache<String,double[]> emissionScoreCache, DecoderContext ctx){
+		findBestLabelSequenceViterbi(sent, new DenseWeights(weights), includeLossTerm, emissionScoreCache, ctx);
+	}
+
+	void findBestLabelSequenceViterbi(LabeledSentence sent, WeightVector weights, boolean includeLossTerm, 
+		SegmentedLRUCache<String,double[]> emissionScoreCache){
+		findBestLabelSequenceViterbi(sent, weights, includeLossTerm, emissionScoreCache, defaultDecoderContext());
+	}
+
 
 	/**
 	 * uses the Viterbi algorithm to find the current best sequence
@@ -1231,11 +2604,15 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 * @param sent
 	 * @param weights
 	 * @param includeLossTerm whether to perform loss augmented inference (e.g., with MIRA)
+	 * @param emissionScoreCache zero-order label scores of previously seen token contexts under 
+	 * these weights, or null to compute them for every token
+	 * @param ctx dynamic programming tables (one per decoding thread)
 	 */
-	public void findBestLabelSequenceViterbi(LabeledSentence sent, double [] weights, boolean includeLossTerm){
-		boolean useBIO = _opts.getBoolean("useBIO");
+	void findBestLabelSequenceViterbi(LabeledSentence sent, WeightVector weights, boolean includeLossTerm, 
+		SegmentedLRUCache<String,double[]> emissionScoreCache, DecoderContext ctx){
+		boolean useBIO = opts().getBoolean("useBIO");
 
-		double costAugVal = _opts.getDouble("useCostAug");
+		double costAugVal = opts().getDouble("useCostAug");
 		
 		//System.out.println("cost aug val: "+ costAugVal);
 //		if(useCostAugStr.equals("true"))
@@ -1246,10 +2623,9 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 		int numTokens = sent.length();
 
-		if(dpValues.length < numTokens){ //expand the size of the dynamic programming tables if necessary
-			dpValues = new double[(int)(numTokens*1.5)][labels.size()];
-			dpBackPointers = new int[(int)(numTokens*1.5)][labels.size()];
-		}
+		ctx.ensureCapacity(numTokens, labels.size());
+		double[][] dpValues = ctx.dpValues;
+		int[][] dpBackPointers = ctx.dpBackPointers;
 
 		String prevLabel;
 
@@ -1259,10 +2635,22 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 		//for each token
 		for(int i=0; i<numTokens; i++){
-			int[][] relevantFeatureIndices = new int[1][];
-			double[] featureValues;
-			
-			featureValues = ArabicFeatureExtractor.getInstance().extractZeroOrderFeatureValues(sent, i, featureIndexes, relevantFeatureIndices, true, false);
+			double[] emissionScores = null;	// zero-order score for each label
+			String contextKey = null;
+			if (emissionScoreCache!=null) {
+				contextKey = featureExtractor().zeroOrderContextKey(sent, i);
+				emissionScores = emissionScoreCache.get(contextKey);
+			}
+			if (emissionScores==null) {
+				double[][] featureValues = new double[1][];
+				int[] relevantFeatures = zeroOrderFeatures(sent, i, featureValues);
+				
+				emissionScores = new double[labels.size()];
+				for(int j=0;j<labels.size();j++)
+					emissionScores[j] = computeScore(relevantFeatures, featureValues[0], weights, j);
+				if (emissionScoreCache!=null)
+					emissionScoreCache.put(contextKey, emissionScores);
+			}
 								
 			//String stem = sent.getStems().get(i);
 			//String tok = sent.getTokens().get(i);
@@ -1274,7 +2662,7 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 				int maxIndex = -1;
 				
 				// score for zero-order features
-				double score0 = computeScore(relevantFeatureIndices[0], featureValues, weights, j);
+				double score0 = emissionScores[j];
 				
 				String label = labels.get(j);
 				
@@ -1316,16 +2704,16 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 					
 					// score of moving from label k at the previous position to the current position (i) & label (j)					
 					score += score0;
-					if (ArabicFeatureExtractor.getInstance().hasFirstOrderFeatures() && i>0) {
+					if (featureExtractor().hasFirstOrderFeatures() && i>0) {
 						// the relevant first-order feature is assumed to have value 1
 						int findex = -1;
 						
-						int[] findexA = ArabicFeatureExtractor.getInstance().extractFirstOrderFeatures(sent, i, featureIndexes, true, false);
+						int[] findexA = featureExtractor().extractFirstOrderFeatures(sent, i, featureIndexes, true, false);
 						if (findexA.length>0)
 							findex = findexA[0];
 							
 						if (findex>=0)
-							score += weights[getGroundedFeatureIndex(findex, j)];
+							score += weights.get(findex, j);
 					}
 					
 // 					double pLFS = previousLabelFeatureScore(labels.get(k), j, weights);
@@ -1413,6 +2801,11 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 		return finalWeights;
 	}
 
+	/** The weights of the model, whether in a dense array (finalWeights) or otherwise (weightStore). */
+	WeightVector modelWeights() {
+		return (weightStore!=null) ? weightStore : new DenseWeights(finalWeights);
+	}
+
 	public String getSavePrefix() {
 		return savePrefix;
 	}
@@ -1446,10 +2839,13 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	}
 
 	private int maxIters = 5;
-	private Iterable<LabeledSentence> trainingData;
+	Iterable<LabeledSentence> trainingData;
 	private List<LabeledSentence> testData;
 
-	private double [] finalWeights;
+	double [] finalWeights;
+	/** if not null, the weights of the model, used instead of finalWeights: 
+	 *  HybridWeights (see --sparse-weights) or ChunkedWeights (see --chunked-weights) */
+	WeightVector weightStore;
 
 	/*
 	 * feature weights are stored in an array of size equal to the number
@@ -1459,7 +2855,7 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 	 *  the offsets are equal to the label index times the number of features
 	 *  
 	 */
-	private Map<String,Integer> featureIndexes;  
+	Map<String,Integer> featureIndexes;  
 	private List<String> labels;
 	private int lastFeatureIndex = 0;
 	private String savePrefix = null;
@@ -1469,11 +2865,50 @@ if (nNonzero==0) throw new RuntimeException("All weights are 0.");
 
 	private double [][] dpValues;
 	private int [][] dpBackPointers;
-	private Random rgen;
-	private boolean developmentMode;
+	private transient DecoderContext decoderContext;
+	/** true while single-pass training is using the layout in which features (rather than labels) 
+	 *  are the major dimension of the weight vector--see getGroundedFeatureIndex() */
+	private transient boolean featureMajorLayout = false;
+	/** number of occurrences of each lifted feature in the training data (counted only for --sparse-weights) */
+	private transient int[] featureCounts;
+	/** for saving models and checkpoints in the background: see writeInBackground() */
+	private transient ExecutorService backgroundWriter;
+	private transient List<Future<?>> backgroundWrites;
+	private transient int backgroundIteration;
+	/** evaluates the model after each iteration of training (see --patience) */
+	private transient DevEvaluator devEvaluator;
+	/** when continuing to train a loaded model: whether it is, and its weights, number of features 
+	 *  and number of labels (before those of the training data are added) */
+	private transient boolean warmStart;
+	private transient WeightVector loadedWeights;
+	private transient int numLoadedFeatures;
+	private transient int numLoadedLabels;
+	Random rgen;
+	boolean developmentMode;
 	private boolean binaryFeats = false;
 	private boolean perceptron = false;
+	/** whether the features of the training data have already been indexed (see setCompiledTrainingData()) */
+	private transient boolean featuresIndexed;
+	/** if not null, the options of this tagger and its feature extractor, rather than those of the 
+	 *  command line (see setOptions()) */
+	private transient JSAPResult options;
+	private transient ArabicFeatureExtractor extractor;
 
 	static JSAPResult _opts;
+	
+	/** Gives this tagger its own options (e.g., for training with several configurations at once), 
+	 *  including those of feature extraction. */
+	void setOptions(JSAPResult options) {
+		this.options = options;
+		extractor = new ArabicFeatureExtractor(options);
+	}
+	
+	private JSAPResult opts() {
+		return (options!=null) ? options : _opts;
+	}
+	
+	private ArabicFeatureExtractor featureExtractor() {
+		return (extractor!=null) ? extractor : ArabicFeatureExtractor.getInstance();
+	}
 
 }
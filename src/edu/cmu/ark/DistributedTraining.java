@@ -0,0 +1,288 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.NumberFormat;
+import java.util.*;
+
+/**
+ * Perceptron training distributed over several processes (possibly on different machines)
+ * by iterative parameter mixing. Each worker process holds only its own shard of the training data;
+ * the coordinator holds only the mixed weight vector.
+ *
+ * Protocol (over one TCP connection per worker):
+ * <ol>
+ * <li>Each worker indexes the features of its shard and sends the coordinator its extraction
+ * settings, labels, and feature names. The coordinator checks that the settings and labels agree,
+ * merges the feature names into a global index (keeping the first worker's numbering), and sends
+ * the global feature list back to every worker.</li>
+ * <li>In each iteration, the coordinator sends every worker the change in the mixed weights since
+ * the previous iteration. Each worker moves its weights to the new mixed weights, runs a perceptron
+ * epoch over its shard, and replies with the sum of its updates during the epoch.
+ * The new mixed weights are the old ones plus the average of the workers' update sums.</li>
+ * <li>After the last iteration, each worker sends its averaging accumulators, from which the
+ * coordinator computes the average weight vector over all instances of all workers.</li>
+ * </ol>
+ * Weight changes are sent sparsely: only indices whose values changed are transmitted.
+ */
+class DistributedTraining {
+	private static final int CMD_EPOCH = 1;
+	private static final int CMD_FINISH = 0;
+
+	/** Listens on the given port for numWorkers workers, then coordinates training and saves the model. */
+	static void runCoordinator(DiscriminativeTagger t, int port, int numWorkers, boolean averaging) throws IOException {
+		t.createDPTables();	// for evaluation in development mode
+		ServerSocket server = new ServerSocket(port);
+		System.err.println("coordinator: waiting for "+numWorkers+" workers on port "+port);
+		Socket[] sockets = new Socket[numWorkers];
+		DataInputStream[] ins = new DataInputStream[numWorkers];
+		DataOutputStream[] outs = new DataOutputStream[numWorkers];
+		for (int w=0; w<numWorkers; w++) {
+			sockets[w] = server.accept();
+			ins[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream()));
+			outs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream()));
+			System.err.println("coordinator: worker "+w+" connected from "+sockets[w].getInetAddress());
+		}
+		server.close();
+
+		// merge the workers' feature indexes
+		String settings = extractionSettings(t.getLabels());
+		Map<String,Integer> featureIndexes = new HashMap<String,Integer>();
+		List<String> featureNames = new ArrayList<String>();
+		for (int w=0; w<numWorkers; w++) {
+			String workerSettings = ins[w].readUTF();
+			if (!workerSettings.equals(settings))
+				throw new IOException("coordinator: worker "+w+" has different labels or feature extraction options: "+workerSettings+" (expected: "+settings+")");
+			for (String fname : readStrings(ins[w])) {
+				if (!featureIndexes.containsKey(fname)) {
+					featureIndexes.put(fname, featureNames.size());
+					featureNames.add(fname);
+				}
+			}
+		}
+		for (int w=0; w<numWorkers; w++) {
+			writeStrings(outs[w], featureNames);
+			outs[w].flush();
+		}
+		t.featureIndexes = featureIndexes;
+		int nWeights = weightVectorSize(t.getLabels().size(), featureIndexes.size());
+		System.err.println("coordinator: "+featureIndexes.size()+" lifted features, size "+nWeights+" weight vector");
+		t.finalWeights = new double[nWeights];
+		double[] mixedWeights = new double[nWeights];
+
+		SparseDelta mixedChange = new SparseDelta();	// change in the mixed weights in the last iteration
+		for (int numIters=0; numIters<t.getMaxIters(); numIters++) {
+			System.err.println("iter="+numIters);
+			for (int w=0; w<numWorkers; w++) {
+				outs[w].writeInt(CMD_EPOCH);
+				writeSparse(outs[w], mixedChange);
+				outs[w].flush();
+			}
+			mixedChange.clear();
+
+			long nWeightUpdates = 0, numWordsIncorrect = 0, numWordsProcessed = 0, bytesReceived = 0;
+			for (int w=0; w<numWorkers; w++) {
+				nWeightUpdates += ins[w].readLong();
+				numWordsIncorrect += ins[w].readLong();
+				numWordsProcessed += ins[w].readLong();
+				bytesReceived += readSparse(ins[w], mixedChange);
+			}
+			// mixing: average of the workers' weights = previous mixed weights + average of their changes
+			SparseDelta scaled = new SparseDelta(mixedChange.size());
+			for (int i=0; i<mixedChange.size(); i++)
+				scaled.add(mixedChange.indexAt(i), mixedChange.valueAt(i)/numWorkers);
+			mixedChange = scaled;
+			mixedChange.applyTo(new ArrayUpdater(mixedWeights));
+
+			System.err.println("pct. correct words in this iteration:"+NumberFormat.getInstance().format((double)(numWordsProcessed-numWordsIncorrect)/numWordsProcessed));
+			System.err.println("weights changed this iteration: "+mixedChange.size()+" ("+bytesReceived+" bytes received from workers)");
+
+			if (t.developmentMode) {	// intermediate models are not averaged
+				System.arraycopy(mixedWeights, 0, t.finalWeights, 0, nWeights);
+				t.evaluateIteration(numIters, mixedWeights);
+			}
+
+			System.err.println("weight updates this iteration: "+nWeightUpdates);
+			if (nWeightUpdates==0) {
+				System.err.println("converged! stopping training");
+				break;
+			}
+		}
+
+		// collect the averaging accumulators
+		Arrays.fill(t.finalWeights, 0.0);
+		long timesteps = 0;
+		for (int w=0; w<numWorkers; w++) {
+			outs[w].writeInt(CMD_FINISH);
+			outs[w].flush();
+			timesteps += ins[w].readLong();
+			SparseDelta sums = new SparseDelta();
+			readSparse(ins[w], sums);
+			sums.applyTo(new ArrayUpdater(t.finalWeights));
+			sockets[w].close();
+		}
+		if (!averaging || timesteps==0)
+			System.arraycopy(mixedWeights, 0, t.finalWeights, 0, nWeights);
+		else {
+			for (int f=0; f<nWeights; f++)
+				t.finalWeights[f] /= timesteps;
+		}
+
+		if (t.getSavePrefix()!=null) t.saveModel(t.getSavePrefix());
+	}
+
+	/** Connects to the coordinator and trains on this process's training data until told to finish. */
+	static void runWorker(DiscriminativeTagger t, String host, int port, boolean averaging) throws IOException {
+		t.createDPTables();
+		t.trainingData = t.createFeatures();
+
+		Socket socket = new Socket(host, port);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+		// send this shard's features, ordered by index; receive the global feature index
+		out.writeUTF(extractionSettings(t.getLabels()));
+		String[] localNames = new String[t.featureIndexes.size()];
+		for (Map.Entry<String,Integer> entry : t.featureIndexes.entrySet())
+			localNames[entry.getValue()] = entry.getKey();
+		writeStrings(out, Arrays.asList(localNames));
+		out.flush();
+		List<String> featureNames = readStrings(in);
+		t.featureIndexes = new HashMap<String,Integer>();
+		for (String fname : featureNames)
+			t.featureIndexes.put(fname, t.featureIndexes.size());
+		if (t.trainingData instanceof CompiledCorpus) {	// compiled with the local feature numbering
+			int[] featureMap = new int[localNames.length];
+			for (int f=0; f<localNames.length; f++)
+				featureMap[f] = t.featureIndexes.get(localNames[f]);
+			((CompiledCorpus)t.trainingData).remapFeatures(featureMap);
+		}
+		int nWeights = weightVectorSize(t.getLabels().size(), featureNames.size());
+		t.finalWeights = null;
+		System.err.println("worker: "+featureNames.size()+" lifted features in the global index, size "+nWeights+" weight vector");
+
+		final PerceptronWeights weights = new PerceptronWeights(nWeights, averaging);
+		final SparseDelta epochChange = new SparseDelta();
+		DiscriminativeTagger.WeightUpdater updater = new DiscriminativeTagger.WeightUpdater() {
+			public void add(long index, double delta) {
+				weights.add(index, delta);
+				epochChange.add(index, delta);
+			}
+		};
+		DiscriminativeTagger.DecoderContext ctx = t.defaultDecoderContext();
+
+		int numIters = 0;
+		while (in.readInt()==CMD_EPOCH) {
+			// move from this worker's weights to the new mixed weights
+			SparseDelta mixedChange = new SparseDelta();
+			readSparse(in, mixedChange);
+			for (int i=0; i<epochChange.size(); i++)
+				weights.add(epochChange.indexAt(i), -epochChange.valueAt(i));
+			mixedChange.applyTo(weights);
+			epochChange.clear();
+
+			System.err.println("iter="+numIters);
+			t.shuffleTrainingData();
+			long[] counts = t.trainEpoch(t.trainingData, weights, updater, ctx);
+
+			out.writeLong(counts[0]);
+			out.writeLong(counts[1]);
+			out.writeLong(counts[2]);
+			writeSparse(out, epochChange);
+			out.flush();
+			numIters++;
+		}
+
+		// send the sums of weight values over all of this worker's instances
+		out.writeLong(weights.getTimestep());
+		SparseDelta sums = new SparseDelta();
+		if (averaging) {
+			double[] s = new double[nWeights];
+			weights.addSumsTo(s);
+			for (int f=0; f<nWeights; f++)
+				if (s[f]!=0.0) sums.add(f, s[f]);
+		}
+		writeSparse(out, sums);
+		out.flush();
+		socket.close();
+		System.err.println("worker: done");
+	}
+
+	/** Size of the (dense, single-array) weight vector used by each process. */
+	private static int weightVectorSize(int numLabels, int numFeatures) throws IOException {
+		long size = (long)numLabels*numFeatures;
+		if (!ChunkedWeights.fitsInArray(size))
+			throw new IOException("The weight vector ("+size+" weights) is too large for a single array, as required for distributed training");
+		return (int)size;
+	}
+
+	/** Options that must be identical for all processes so that features are extracted the same way. */
+	private static String extractionSettings(List<String> labels) {
+		return "labels="+labels+" usePrevLabel="+DiscriminativeTagger._opts.getBoolean("usePrevLabel")
+			+" no-lex="+DiscriminativeTagger._opts.getBoolean("no-lex")
+			+" excludeFeatures="+DiscriminativeTagger._opts.getString("excludeFeatures");
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String s : strings)
+			out.writeUTF(s);
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<String> strings = new ArrayList<String>(n);
+		for (int i=0; i<n; i++)
+			strings.add(in.readUTF());
+		return strings;
+	}
+
+	/** Writes the nonzero entries of delta as index-value pairs. */
+	private static void writeSparse(DataOutputStream out, SparseDelta delta) throws IOException {
+		int n = 0;
+		for (int i=0; i<delta.size(); i++)
+			if (delta.valueAt(i)!=0.0) n++;
+		out.writeInt(n);
+		for (int i=0; i<delta.size(); i++) {
+			if (delta.valueAt(i)==0.0) continue;
+			out.writeLong(delta.indexAt(i));
+			out.writeDouble(delta.valueAt(i));
+		}
+	}
+
+	/** Adds index-value pairs written by writeSparse() to delta.
+	 *  @return number of bytes read */
+	private static long readSparse(DataInputStream in, SparseDelta delta) throws IOException {
+		int n = in.readInt();
+		for (int i=0; i<n; i++) {
+			long index = in.readLong();
+			delta.add(index, in.readDouble());
+		}
+		return 4 + 16L*n;
+	}
+
+	/** Applies weight changes to a plain array. */
+	private static class ArrayUpdater implements DiscriminativeTagger.WeightUpdater {
+		private final double[] weights;
+		ArrayUpdater(double[] weights) { this.weights = weights; }
+		public void add(long index, double delta) { weights[(int)index] += delta; }
+	}
+}
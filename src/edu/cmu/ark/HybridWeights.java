@@ -0,0 +1,215 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.Serializable;
+import java.text.NumberFormat;
+import java.util.Arrays;
+
+/**
+ * Weight vector that stores the weights of frequent features densely (a block with a weight for
+ * every label) and those of all other features sparsely: an open-addressing hash table from
+ * (lifted feature, label) pairs to weights, holding only weights that have been updated.
+ * Most lexical features are rare and only ever get nonzero weights for one or two labels, so
+ * memory use is roughly proportional to the number of nonzero weights rather than to
+ * (number of features) x (number of labels).
+ *
+ * Like {@link PerceptronWeights}, the vector can keep the running sums needed for lazy averaging
+ * during training; {@link #averaged()} then produces the (non-training) weight vector of the model.
+ *
+ * Updates are given as grounded feature indices in the standard layout (see
+ * DiscriminativeTagger.getGroundedFeatureIndex()), which is decoded using the number of lifted features.
+ */
+class HybridWeights implements DiscriminativeTagger.TrainableWeights, Serializable {
+	private static final long serialVersionUID = 3183472263841739012L;
+	private static final long EMPTY = -1;
+
+	private final int numFeatures;
+	private final int numLabels;
+	private final int[] denseBlock;	// per lifted feature: offset of its block of weights in dense, or -1 if stored sparsely
+	private final double[] dense;
+
+	private long[] keys;	// lifted*numLabels + label, or EMPTY
+	private double[] values;
+	private int size = 0;
+	private int mask;
+
+	// running sums for averaging (training only)
+	private transient double[] denseSummed, sparseSummed;
+	private transient int[] denseLastUpdated, sparseLastUpdated;
+	private transient int timestep = 0;
+
+	/**
+	 * @param isDense: which lifted features to store densely
+	 * @param averaging: whether to keep running sums for averaging
+	 */
+	HybridWeights(int numFeatures, int numLabels, boolean[] isDense, boolean averaging) {
+		this(numFeatures, numLabels, isDense, averaging, 1024);
+	}
+
+	private HybridWeights(int numFeatures, int numLabels, boolean[] isDense, boolean averaging, int expectedSparse) {
+		this.numFeatures = numFeatures;
+		this.numLabels = numLabels;
+		denseBlock = new int[numFeatures];
+		int nDense = 0;
+		for (int f=0; f<numFeatures; f++)
+			denseBlock[f] = (isDense[f]) ? numLabels*(nDense++) : -1;
+		dense = new double[nDense*numLabels];
+		if (averaging) {
+			denseSummed = new double[dense.length];
+			denseLastUpdated = new int[dense.length];
+		}
+		int capacity = 16;
+		while (capacity < 2*expectedSparse) capacity <<= 1;
+		allocate(capacity, averaging);
+	}
+
+	private void allocate(int capacity, boolean averaging) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new double[capacity];
+		if (averaging) {
+			sparseSummed = new double[capacity];
+			sparseLastUpdated = new int[capacity];
+		}
+		mask = capacity-1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;	// Fibonacci hashing
+		int s = (int)(h ^ (h >>> 32)) & mask;
+		while (keys[s]!=EMPTY && keys[s]!=key)
+			s = (s+1) & mask;	// linear probing
+		return s;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		double[] oldSummed = sparseSummed;
+		int[] oldLastUpdated = sparseLastUpdated;
+		allocate(2*keys.length, oldSummed!=null);
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldKeys[i]==EMPTY) continue;
+			int s = slot(oldKeys[i]);
+			keys[s] = oldKeys[i];
+			values[s] = oldValues[i];
+			if (oldSummed!=null) {
+				sparseSummed[s] = oldSummed[i];
+				sparseLastUpdated[s] = oldLastUpdated[i];
+			}
+		}
+	}
+
+	public double get(int liftedFeature, int label) {
+		int b = denseBlock[liftedFeature];
+		if (b>=0) return dense[b+label];
+		int s = slot((long)liftedFeature*numLabels + label);
+		return (keys[s]==EMPTY) ? 0.0 : values[s];
+	}
+
+	/** Adds delta to the weight with the given grounded index, counting it from the current instance onward. */
+	public void add(long index, double delta) {
+		int f = (int)(index % numFeatures);
+		int label = (int)(index / numFeatures);
+		int b = denseBlock[f];
+		if (b>=0) {
+			int i = b+label;
+			if (denseSummed!=null) {
+				denseSummed[i] += dense[i] * (timestep - denseLastUpdated[i]);
+				denseLastUpdated[i] = timestep;
+			}
+			dense[i] += delta;
+			return;
+		}
+		long key = (long)f*numLabels + label;
+		int s = slot(key);
+		if (keys[s]==EMPTY) {
+			if (2*(size+1) > keys.length) {	// keep the load factor at most 1/2
+				grow();
+				s = slot(key);
+			}
+			keys[s] = key;	// a new weight's sum is 0 however old it is
+			size++;
+		}
+		if (sparseSummed!=null) {
+			sparseSummed[s] += values[s] * (timestep - sparseLastUpdated[s]);
+			sparseLastUpdated[s] = timestep;
+		}
+		values[s] += delta;
+	}
+
+	/** Marks the end of a training instance. */
+	public void endInstance() {
+		if (timestep==Integer.MAX_VALUE)
+			throw new RuntimeException("HybridWeights: too many training instances for averaging");
+		timestep++;
+	}
+
+	/**
+	 * The weights of the model: the average over all timesteps if averaging (and any instances have
+	 * been processed), else the current weights. Sparse weights that are 0 are omitted.
+	 */
+	public HybridWeights averaged() {
+		boolean avg = (denseSummed!=null && timestep>0);
+		boolean[] isDense = new boolean[numFeatures];
+		for (int f=0; f<numFeatures; f++)
+			isDense[f] = denseBlock[f]>=0;
+		int nNonzero = 0;
+		for (int s=0; s<keys.length; s++)
+			if (keys[s]!=EMPTY && values[s]!=0.0) nNonzero++;	// approximate size of the result
+		HybridWeights res = new HybridWeights(numFeatures, numLabels, isDense, false, nNonzero);
+		for (int i=0; i<dense.length; i++)
+			res.dense[i] = (avg) ? (denseSummed[i] + dense[i]*(timestep-denseLastUpdated[i])) / timestep : dense[i];
+		for (int s=0; s<keys.length; s++) {
+			if (keys[s]==EMPTY) continue;
+			double v = (avg) ? (sparseSummed[s] + values[s]*(timestep-sparseLastUpdated[s])) / timestep : values[s];
+			if (v==0.0) continue;
+			int t = res.slot(keys[s]);
+			if (2*(res.size+1) > res.keys.length) {
+				res.grow();
+				t = res.slot(keys[s]);
+			}
+			res.keys[t] = keys[s];
+			res.values[t] = v;
+			res.size++;
+		}
+		return res;
+	}
+
+	/** Whether the weights of a lifted feature are stored densely. */
+	boolean isDense(int liftedFeature) { return denseBlock[liftedFeature]>=0; }
+
+	/** Number of lifted features whose weights are stored densely. */
+	int numDenseFeatures() { return dense.length/numLabels; }
+
+	/** Number of weights stored sparsely. */
+	int numSparseWeights() { return size; }
+
+	/** Approximate memory used by the weights (excluding averaging sums), in bytes. */
+	long memoryBytes() {
+		return 8L*dense.length + 4L*denseBlock.length + 16L*keys.length;
+	}
+
+	public String toString() {
+		NumberFormat nf = NumberFormat.getInstance();
+		nf.setMaximumFractionDigits(2);
+		return numDenseFeatures()+" of "+numFeatures+" lifted features dense, "+size+" sparse weights; ~"
+			+nf.format(memoryBytes()/1048576.0)+" MB (dense vector: "+nf.format(8.0*numFeatures*numLabels/1048576.0)+" MB)";
+	}
+}
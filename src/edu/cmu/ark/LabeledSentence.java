@@ -17,8 +17,11 @@
 */
 package edu.cmu.ark;
 
+import java.nio.IntBuffer;
 import java.util.*;
 
+import edu.cmu.ark.util.LineChunkReader;
+
 public class LabeledSentence {
 
 	public LabeledSentence(){
@@ -54,6 +57,7 @@ public class LabeledSentence {
 	private List<String> trueLabels; //true labels (if available from training/test data)
 	private List<String> predictions; //predictions made by the system
 	private List<String>[] features;
+	private List<int[]> compiledFeatures;	// zero-order feature indices for each token, if the sentence was compiled
 	private String articleID;
 	private String trainDataID;
 	private double diff; //the difference between the max score for tagging and second max score for tagging
@@ -120,25 +124,42 @@ public class LabeledSentence {
 
 	}
 	
-	/** Used for binary format input, where string values are indexed in a member of ArabicFeatureExtractor. */
-	public void addToken(int[] feats, String label) {
+	/** Used for binary format input, where string values are indexed in a member of ArabicFeatureExtractor. 
+	 *  The token and its features are given as stored in the file (see LineChunkReader.readBinaryChunk()). */
+	public void addToken(IntBuffer feats, String label) {
 		String[] strings = ArabicFeatureExtractor.getInstance().getStringVocabulary();
+		int start = feats.position();
+		int n = feats.remaining();
 
 		trueLabels.add(label);
 		
 		predictions.add(DEFAULT_PREDICTION);
 		
-		tokens.add(strings[feats[0]]);
+		tokens.add(strings[feats.get(start)-LineChunkReader.BINARY_OFFSET]);
 		
-		if (feats.length<2) throw new RuntimeException("No features found: label="+label+", feats="+Arrays.toString(feats));
+		if (n<2) throw new RuntimeException("No features found: label="+label+", feats="+Arrays.toString(LineChunkReader.decode(feats)));
 		
-		if (features==null) initBasicFeatures(feats.length-1);
-		for(int i=1; i<feats.length; i++){
-			features[i-1].add(strings[feats[i]]);
+		if (features==null) initBasicFeatures(n-1);
+		for(int i=1; i<n; i++){
+			features[i-1].add(strings[feats.get(start+i)-LineChunkReader.BINARY_OFFSET]);
 		}
 	}
 	
 
+	/** Used for compiled training data (see CompiledCorpus), where each token's zero-order features 
+	 *  are given as feature indices. The token string and basic features are not kept. */
+	public void addCompiledToken(int[] featureIndices, String label) {
+		tokens.add("");
+		
+		trueLabels.add(label);
+		
+		predictions.add(DEFAULT_PREDICTION);
+		
+		if (compiledFeatures==null) compiledFeatures = new ArrayList<int[]>();
+		compiledFeatures.add(featureIndices);
+	}
+	
+
 	public void addToken(String token, String[] affixes, String[] mfeats, String label) {
 		tokens.add(token);
 
@@ -169,6 +190,11 @@ public class LabeledSentence {
 		return features;
 	}
 	
+	/** @return null unless the sentence was compiled */
+	public List<int[]> getCompiledFeatures(){
+		return compiledFeatures;
+	}
+	
 	public List<String> getLabels() {
 		return trueLabels;
 	}
@@ -193,4 +219,33 @@ public class LabeledSentence {
 	public void setPredictions(List<String> predictions) {
 		this.predictions = predictions;
 	}
+
+	/** A copy that shares everything but the predictions with this sentence, so that the two can be decoded concurrently. */
+	LabeledSentence copyForDecoding() {
+		LabeledSentence res = new LabeledSentence();
+		res.tokens = tokens;
+		res.trueLabels = trueLabels;
+		res.predictions = new ArrayList<String>(predictions);
+		res.features = features;
+		res.compiledFeatures = compiledFeatures;
+		res.articleID = articleID;
+		res.trainDataID = trainDataID;
+		res.diff = diff;
+		return res;
+	}
+
+	/** A copy for decoding (see copyForDecoding()) whose tokens have the given (compiled) zero-order feature indices. */
+	LabeledSentence copyForDecoding(List<int[]> compiledFeatures) {
+		LabeledSentence res = copyForDecoding();
+		res.compiledFeatures = compiledFeatures;
+		return res;
+	}
+
+	/** Copies of the sentences (see copyForDecoding()), in a new list. */
+	static List<LabeledSentence> copiesForDecoding(List<LabeledSentence> sentences) {
+		List<LabeledSentence> res = new ArrayList<LabeledSentence>(sentences.size());
+		for (LabeledSentence sent : sentences)
+			res.add(sent.copyForDecoding());
+		return res;
+	}
 }
@@ -0,0 +1,97 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import edu.cmu.ark.util.LineChunkReader;
+
+/**
+ * Loads a text feature file into memory with several threads (--load-threads): the file is divided
+ * into byte ranges whose boundaries are moved forward to the start of a sentence
+ * (see {@link LineChunkReader#splitPoints(File, int)}), the ranges are parsed in parallel on a
+ * fork-join pool, each by its own {@link DiscriminativeTagger.FeatureFileReader}, and the sentences
+ * of the ranges are concatenated in file order. The result is the same as that of reading the file
+ * sequentially.
+ */
+class ParallelLoader {
+	/** ranges per thread, so that threads that finish early can take over the work of others */
+	private static final int RANGES_PER_THREAD = 4;
+
+	static List<LabeledSentence> load(File file, List<String> labels, boolean allowUnknownLabels,
+		Set<Integer> excludedFeatures, int numThreads) throws IOException {
+		long[] points = LineChunkReader.splitPoints(file, numThreads*RANGES_PER_THREAD);
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			return pool.invoke(new RangeTask(file, labels, allowUnknownLabels, excludedFeatures, points, 0, points.length-1));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** Reads the ranges lo..hi-1, splitting them in half until there is a single range to read. */
+	private static class RangeTask extends RecursiveTask<List<LabeledSentence>> {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		private final List<String> labels;
+		private final boolean allowUnknownLabels;
+		private final Set<Integer> excludedFeatures;
+		private final long[] points;
+		private final int lo, hi;
+
+		RangeTask(File file, List<String> labels, boolean allowUnknownLabels, Set<Integer> excludedFeatures,
+			long[] points, int lo, int hi) {
+			this.file = file;
+			this.labels = labels;
+			this.allowUnknownLabels = allowUnknownLabels;
+			this.excludedFeatures = excludedFeatures;
+			this.points = points;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected List<LabeledSentence> compute() {
+			if (hi-lo==1) return readRange(points[lo], points[hi]);
+			int mid = (lo+hi)>>>1;
+			RangeTask left = new RangeTask(file, labels, allowUnknownLabels, excludedFeatures, points, lo, mid);
+			left.fork();
+			List<LabeledSentence> right = new RangeTask(file, labels, allowUnknownLabels, excludedFeatures, points, mid, hi).compute();
+			List<LabeledSentence> sents = left.join();
+			sents.addAll(right);
+			return sents;
+		}
+
+		private List<LabeledSentence> readRange(long start, long end) {
+			List<LabeledSentence> sents = new ArrayList<LabeledSentence>();
+			try {
+				DiscriminativeTagger.FeatureFileReader rdr = new DiscriminativeTagger.FeatureFileReader(file, labels, false, allowUnknownLabels, excludedFeatures);
+				rdr.setRange(start, end);
+				for (LabeledSentence sent : rdr)
+					sents.add(sent);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+			return sents;
+		}
+	}
+}
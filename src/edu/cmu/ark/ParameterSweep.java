@@ -0,0 +1,271 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.*;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.martiansoftware.jsap.*;
+
+/**
+ * Trains and evaluates several configurations of the tagger (--sweep), e.g., for tuning
+ * hyperparameters or for feature ablation, in a single process: the training and test (development)
+ * data are loaded once, and the training data is compiled once for each distinct set of feature
+ * extraction options (--usePrevLabel, --no-lex, --excludeFeatures), the configurations with that set
+ * sharing the compiled sentences and the feature index. The configurations are then trained
+ * concurrently on a thread pool, each by its own tagger with its own options.
+ *
+ * Each line of the sweep file gives the options of a configuration that differ from the command
+ * line, e.g. "--useCostAug 5 --iters 10"; empty lines and lines starting with # are ignored.
+ * A table of the dev F1 score, training time and model size of each configuration is printed
+ * to stdout. (Training times are wall-clock times, and so depend on how many configurations
+ * are trained at once.)
+ */
+class ParameterSweep {
+	/** options that must be the same for all configurations */
+	private static final Set<String> FIXED_OPTIONS = new HashSet<String>(Arrays.asList(
+		"train", "test", "labels", "properties", "binary", "vocab", "load-threads", "decompress-threads", "disk", "load", "resume", "sweep", "sweep-threads",
+		"single-pass", "sparse-weights", "coordinator", "worker"));
+
+	private static class Config {
+		final int number;
+		final String line;
+		final JSAPResult opts;
+		Config(int number, String line, JSAPResult opts) {
+			this.number = number;
+			this.line = line;
+			this.opts = opts;
+		}
+
+		/** The options that determine the features extracted from the data. */
+		String extractionKey() {
+			Set<Integer> excluded = new TreeSet<Integer>();
+			for (String col : opts.getString("excludeFeatures").split(","))
+				if (col.length()>0) excluded.add(Integer.parseInt(col.trim()));
+			return "usePrevLabel="+opts.getBoolean("usePrevLabel")+" no-lex="+opts.getBoolean("no-lex")+" excludeFeatures="+excluded;
+		}
+	}
+
+	private static class Result {
+		double f1;
+		double seconds;
+		int numFeatures;
+		long numNonzero;
+		long bytes;
+	}
+
+	static void run(JSAP optparser, String[] args, JSAPResult opts) {
+		String trainFile = opts.getString("train");
+		String testFile = opts.getString("test");
+		String labelFile = opts.getString("labels");
+		if (trainFile==null || testFile==null || labelFile==null) {
+			System.err.println("--sweep requires --train, --test, and --labels");
+			System.exit(1);
+		}
+
+		List<Config> configs = null;
+		try {
+			configs = readConfigs(opts.getString("sweep"), optparser, args);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
+		}
+		if (configs.isEmpty()) {
+			System.err.println("No configurations in "+opts.getString("sweep"));
+			System.exit(1);
+		}
+
+		// the columns of features excluded by every configuration need not be read
+		Set<Integer> excluded = null;
+		for (Config config : configs) {
+			Set<Integer> configExcluded = new ArabicFeatureExtractor(config.opts).excludeFeatNums;
+			if (excluded==null) excluded = new HashSet<Integer>(configExcluded);
+			else excluded.retainAll(configExcluded);
+		}
+		final List<String> labels = DiscriminativeTagger.loadLabelList(labelFile);
+		List<LabeledSentence> trainingData = DiscriminativeTagger.loadData(trainFile, labels, opts.getBoolean("binary"), false, excluded);
+		final List<LabeledSentence> testData = DiscriminativeTagger.loadData(testFile, labels, opts.getBoolean("binary"), true, excluded);
+
+		// compile the training data once for each set of feature extraction options
+		Map<String,List<Config>> groups = new LinkedHashMap<String,List<Config>>();
+		for (Config config : configs) {
+			String key = config.extractionKey();
+			if (!groups.containsKey(key)) groups.put(key, new ArrayList<Config>());
+			groups.get(key).add(config);
+		}
+		Map<Config,List<LabeledSentence>> compiledData = new HashMap<Config,List<LabeledSentence>>();
+		Map<Config,Map<String,Integer>> featureIndexes = new HashMap<Config,Map<String,Integer>>();
+		for (Map.Entry<String,List<Config>> group : groups.entrySet()) {
+			System.err.println("features for configuration(s) "+numbers(group.getValue())+": "+group.getKey());
+			DiscriminativeTagger compiler = new DiscriminativeTagger();
+			compiler.setOptions(group.getValue().get(0).opts);
+			compiler.setLabels(labels);
+			compiler.setTrainingData(LabeledSentence.copiesForDecoding(trainingData));	// indexing sets the predictions
+			List<LabeledSentence> compiled = null;
+			try {
+				compiled = compiler.compileTrainingData();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+			for (Config config : group.getValue()) {
+				compiledData.put(config, compiled);
+				featureIndexes.put(config, compiler.featureIndexes);
+			}
+		}
+		trainingData = null;
+
+		int numThreads = opts.getInt("sweep-threads");
+		if (numThreads<=0) numThreads = Runtime.getRuntime().availableProcessors();
+		numThreads = Math.min(numThreads, configs.size());
+		System.err.println("training "+configs.size()+" configurations with "+numThreads+" thread(s)");
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		for (final Config config : configs) {
+			final List<LabeledSentence> compiled = compiledData.get(config);
+			final Map<String,Integer> features = featureIndexes.get(config);
+			final String savePrefix = (opts.getString("save")!=null) ? opts.getString("save")+".sweep"+config.number : null;
+			results.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					return train(config, labels, compiled, features, testData, savePrefix);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		NumberFormat nf = NumberFormat.getInstance();
+		nf.setMaximumFractionDigits(2);
+		System.out.println("config\tF1\ttraining time (s)\tlifted features\tnonzero weights\tMB\toptions");
+		for (int c=0; c<configs.size(); c++) {
+			Result r = null;
+			try {
+				r = results.get(c).get();
+			} catch (Exception ex) {
+				ex.printStackTrace();
+				System.exit(1);
+			}
+			Config config = configs.get(c);
+			System.out.println(config.number+"\t"+r.f1+"\t"+nf.format(r.seconds)+"\t"+r.numFeatures+"\t"+r.numNonzero
+				+"\t"+nf.format(r.bytes/1048576.0)+"\t"+config.line);
+		}
+	}
+
+	/** Trains and evaluates one configuration on copies of the shared data. */
+	private static Result train(Config config, List<String> labels, List<LabeledSentence> compiled,
+		Map<String,Integer> featureIndexes, List<LabeledSentence> testData, String savePrefix) {
+		System.err.println("training configuration "+config.number+": "+config.line);
+		DiscriminativeTagger t = new DiscriminativeTagger();
+		t.setOptions(config.opts);
+		t.setLabels(labels);
+		t.setPerceptron(true);
+		t.setDevelopmentMode(config.opts.getBoolean("debug"));
+		t.setSavePrefix(savePrefix);
+		t.setMaxIters(config.opts.getInt("iters"));
+		boolean prunes = config.opts.getString("prune").length()>0 || config.opts.getDouble("truncate")>0;
+		t.setCompiledTrainingData(LabeledSentence.copiesForDecoding(compiled), (prunes) ? new HashMap<String,Integer>(featureIndexes) : featureIndexes);
+		t.setTestData(LabeledSentence.copiesForDecoding(testData));
+
+		long startTime = System.currentTimeMillis();
+		t.train();
+		Result r = new Result();
+		r.seconds = (System.currentTimeMillis()-startTime)/1000.0;
+
+		DiscriminativeTagger.WeightVector weights = t.modelWeights();
+		r.f1 = t.test(weights);
+		r.numFeatures = t.featureIndexes.size();
+		for (int f=0; f<r.numFeatures; f++)
+			for (int l=0; l<labels.size(); l++)
+				if (weights.get(f,l)!=0.0) r.numNonzero++;
+		r.bytes = t.modelBytes();
+		System.err.println("configuration "+config.number+": F1 "+r.f1);
+		return r;
+	}
+
+	private static String numbers(List<Config> configs) {
+		StringBuilder sb = new StringBuilder();
+		for (Config config : configs)
+			sb.append((sb.length()>0) ? "," : "").append(config.number);
+		return sb.toString();
+	}
+
+	/**
+	 * Reads the configurations from the sweep file, parsing the options of each line
+	 * along with the command-line options args (other than those given on the line).
+	 */
+	private static List<Config> readConfigs(String path, JSAP optparser, String[] args) throws IOException {
+		List<Config> res = new ArrayList<Config>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8"));
+		String ln;
+		while ((ln = br.readLine())!=null) {
+			ln = ln.trim();
+			if (ln.length()==0 || ln.startsWith("#")) continue;
+			String[] lineArgs = ln.split("\\s+");
+			Set<String> given = new HashSet<String>();
+			for (List<String> opt : splitOptions(optparser, lineArgs)) {
+				String name = optionName(opt.get(0));
+				if (FIXED_OPTIONS.contains(name)) {
+					System.err.println("--"+name+" cannot be set for a single configuration in "+path+": "+ln);
+					System.exit(1);
+				}
+				given.add(name);
+			}
+			List<String> merged = new ArrayList<String>();
+			for (List<String> opt : splitOptions(optparser, args)) {
+				String name = optionName(opt.get(0));
+				if (!given.contains(name) && !name.equals("sweep") && !name.equals("sweep-threads"))
+					merged.addAll(opt);
+			}
+			merged.addAll(Arrays.asList(lineArgs));
+			JSAPResult opts = optparser.parse(merged.toArray(new String[merged.size()]));
+			if (!opts.success()) {
+				for (Iterator<?> it = opts.getErrorMessageIterator(); it.hasNext();)
+					System.err.println(it.next());
+				System.err.println("Invalid options in "+path+": "+ln);
+				System.exit(1);
+			}
+			res.add(new Config(res.size()+1, ln, opts));
+		}
+		br.close();
+		return res;
+	}
+
+	/** Groups command-line arguments into options, each a flag followed by its value (if any). */
+	private static List<List<String>> splitOptions(JSAP optparser, String[] args) {
+		List<List<String>> res = new ArrayList<List<String>>();
+		for (int i=0; i<args.length; i++) {
+			if (!args[i].startsWith("--")) {
+				System.err.println("Expected an option starting with --: "+args[i]);
+				System.exit(1);
+			}
+			List<String> opt = new ArrayList<String>();
+			opt.add(args[i]);
+			Flagged param = optparser.getByLongFlag(optionName(args[i]));
+			if (param instanceof FlaggedOption && args[i].indexOf('=')<0 && i+1<args.length)
+				opt.add(args[++i]);
+			res.add(opt);
+		}
+		return res;
+	}
+
+	private static String optionName(String flag) {
+		int eq = flag.indexOf('=');
+		return (eq>=0) ? flag.substring(2, eq) : flag.substring(2);
+	}
+}
@@ -0,0 +1,193 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parameter vector for perceptron training, optionally with lazy averaging.
+ *
+ * The averaged perceptron uses the mean of the weight vectors after every training instance.
+ * Rather than touching every weight after each instance, each weight records the timestep
+ * (number of completed instances) at which it last changed, along with the sum of its values
+ * up to that timestep. When a weight is updated, the sum is first brought up to date by adding
+ * its current value times the number of instances since its last change. Thus an update costs
+ * O(1) per touched weight, and a single O(weights) pass ({@link #averageInto(double[])})
+ * produces the averaged vector.
+ *
+ * A shared instance may be updated by several threads without locking (Hogwild-style training);
+ * in that case the instance counter is atomic. Concurrent updates to the same weight may occasionally
+ * be lost, which is tolerable because updates are sparse.
+ *
+ * The vector can grow (e.g., as new features are indexed during the first iteration of single-pass
+ * training); new weights start at 0, which is also what their running sums assume.
+ * The vector is stored in arrays, so its size is limited to that of a Java array
+ * (see {@link ChunkedWeights} for larger vectors).
+ */
+class PerceptronWeights implements DiscriminativeTagger.WeightUpdater, Serializable {
+	private static final long serialVersionUID = 5520387717020615842L;
+
+	private double[] current;
+	private double[] summed;	// null if not averaging
+	private int[] lastUpdated;	// null if not averaging
+	private int timestep = 0;	// number of completed instances
+	private final AtomicInteger sharedTimestep;	// used instead of timestep if shared by several threads
+
+	PerceptronWeights(int size, boolean averaging) {
+		this(size, averaging, false);
+	}
+
+	/**
+	 * @param shared: whether the weights will be updated concurrently by several threads
+	 */
+	PerceptronWeights(int size, boolean averaging, boolean shared) {
+		current = new double[size];
+		summed = (averaging) ? new double[size] : null;
+		lastUpdated = (averaging) ? new int[size] : null;
+		sharedTimestep = (shared) ? new AtomicInteger(0) : null;
+	}
+
+	/**
+	 * Makes room for at least the given number of weights, growing the arrays geometrically 
+	 * so that repeated small increases take amortized constant time. Not thread-safe.
+	 * (The array returned by getCurrent() may be replaced.)
+	 */
+	void ensureSize(int size) {
+		if (size>current.length)
+			resize(Math.max(size, (int)Math.min(Integer.MAX_VALUE-8, 2L*current.length)));
+	}
+
+	/** Sets the number of weights exactly (growing or truncating). Not thread-safe. */
+	void resize(int size) {
+		current = Arrays.copyOf(current, size);
+		if (summed!=null) {
+			summed = Arrays.copyOf(summed, size);
+			lastUpdated = Arrays.copyOf(lastUpdated, size);	// a new weight's sum is 0 however old it is
+		}
+	}
+
+	int size() { return current.length; }
+
+	/**
+	 * A copy of the weights with their averaging state, e.g., for a checkpoint (see {@link TrainingCheckpoint}).
+	 * The copy is never shared by several threads. Not thread-safe.
+	 */
+	PerceptronWeights copy() {
+		PerceptronWeights res = new PerceptronWeights(0, false);
+		res.current = current.clone();
+		if (summed!=null) {
+			res.summed = summed.clone();
+			res.lastUpdated = lastUpdated.clone();
+		}
+		res.timestep = getTimestep();
+		return res;
+	}
+
+	/** The latest parameter values (not averaged). */
+	double[] getCurrent() { return current; }
+
+	boolean isAveraging() { return summed!=null; }
+
+	int getTimestep() { return (sharedTimestep==null) ? timestep : sharedTimestep.get(); }
+
+	/** Adds delta to the current value of the weight at index, counting it from the current instance onward. */
+	public void add(long lindex, double delta) {
+		int index = (int)lindex;	// the vector is an array, so its indices are within the range of int
+		if (summed!=null) {
+			int t = getTimestep();
+			summed[index] += current[index] * (t - lastUpdated[index]);
+			lastUpdated[index] = t;
+		}
+		current[index] += delta;
+	}
+
+	/** Marks the end of a training instance. */
+	void endInstance() {
+		if (getTimestep()==Integer.MAX_VALUE)
+			throw new RuntimeException("PerceptronWeights: too many training instances for averaging");
+		if (sharedTimestep==null)
+			timestep++;
+		else
+			sharedTimestep.incrementAndGet();
+	}
+
+	/**
+	 * Replaces the current weights (e.g., with weights mixed from several shards of the data),
+	 * keeping the running sums correct.
+	 */
+	void setCurrent(double[] values) {
+		if (summed!=null) flushSums();
+		System.arraycopy(values, 0, current, 0, current.length);
+	}
+
+	/**
+	 * Brings all running sums up to date and writes the averaged weights (or the current weights,
+	 * if not averaging or no instances have been processed) into the given array.
+	 */
+	void averageInto(double[] out) {
+		int t = getTimestep();
+		if (summed==null || t==0) {
+			System.arraycopy(current, 0, out, 0, current.length);
+			return;
+		}
+		flushSums();
+		for (int f=0; f<current.length; f++)
+			out[f] = summed[f] / t;
+	}
+
+	/**
+	 * Brings all running sums up to date and adds them to the given array; dividing the total
+	 * by the total timestep of all vectors contributing to it gives their joint average.
+	 */
+	void addSumsTo(double[] out) {
+		if (summed==null) throw new IllegalStateException("PerceptronWeights.addSumsTo(): not averaging");
+		flushSums();
+		for (int f=0; f<current.length; f++)
+			out[f] += summed[f];
+	}
+
+	/**
+	 * A truncated-gradient step (Langford, Li & Zhang, 2009, with an unbounded truncation threshold):
+	 * moves every current weight toward 0 by the given amount, stopping at 0, keeping the running
+	 * sums correct. Not thread-safe.
+	 * @return number of nonzero weights remaining
+	 */
+	int truncate(double amount) {
+		if (summed!=null) flushSums();
+		int nNonzero = 0;
+		for (int f=0; f<current.length; f++) {
+			double w = current[f];
+			if (w>amount) current[f] = w-amount;
+			else if (w<-amount) current[f] = w+amount;
+			else current[f] = 0.0;
+			if (current[f]!=0.0) nNonzero++;
+		}
+		return nNonzero;
+	}
+
+	/** Not thread-safe: should only be called when no updates are in progress. */
+	private void flushSums() {
+		int t = getTimestep();
+		for (int f=0; f<current.length; f++) {
+			summed[f] += current[f] * (t - lastUpdated[f]);
+			lastUpdated[f] = t;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.util.Arrays;
+
+/**
+ * Sparse accumulator of weight changes: an open-addressing hash table from (grounded) weight
+ * indices to summed deltas, using primitive arrays only. Entries are remembered in the order
+ * they were first added, so applying and clearing the accumulator takes time proportional
+ * to the number of entries rather than to the capacity.
+ */
+class SparseDelta implements DiscriminativeTagger.WeightUpdater {
+	private static final int EMPTY = -1;
+
+	private long[] keys;
+	private double[] values;
+	private int[] slotsInOrder;	// occupied slots, in order of insertion
+	private int size = 0;
+	private int mask;
+
+	SparseDelta() {
+		this(1024);
+	}
+
+	SparseDelta(int expectedSize) {
+		int capacity = 16;
+		while (capacity < 2*expectedSize) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new double[capacity];
+		slotsInOrder = new int[capacity/2];
+		mask = capacity-1;
+	}
+
+	private int slot(long index) {
+		long h = index * 0x9E3779B97F4A7C15L;	// Fibonacci hashing
+		int s = (int)(h ^ (h >>> 32)) & mask;
+		while (keys[s]!=EMPTY && keys[s]!=index)
+			s = (s+1) & mask;	// linear probing
+		return s;
+	}
+
+	public void add(long index, double delta) {
+		int s = slot(index);
+		if (keys[s]==EMPTY) {
+			if (size==slotsInOrder.length) {	// load factor would exceed 1/2
+				grow();
+				s = slot(index);
+			}
+			keys[s] = index;
+			slotsInOrder[size++] = s;
+		}
+		values[s] += delta;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		double[] oldValues = values;
+		int[] oldSlots = slotsInOrder;
+		int n = size;
+		allocate(keys.length*2);
+		size = 0;
+		for (int i=0; i<n; i++) {
+			int s = slot(oldKeys[oldSlots[i]]);
+			keys[s] = oldKeys[oldSlots[i]];
+			values[s] = oldValues[oldSlots[i]];
+			slotsInOrder[size++] = s;
+		}
+	}
+
+	/** Number of distinct indices with accumulated changes. */
+	int size() { return size; }
+
+	/** The i-th index to which a change was added (0 <= i < size()). */
+	long indexAt(int i) { return keys[slotsInOrder[i]]; }
+
+	/** The accumulated change for the i-th index. */
+	double valueAt(int i) { return values[slotsInOrder[i]]; }
+
+	/** Adds each nonzero accumulated change to the target. */
+	void applyTo(DiscriminativeTagger.WeightUpdater target) {
+		for (int i=0; i<size; i++) {
+			int s = slotsInOrder[i];
+			if (values[s]!=0.0)
+				target.add(keys[s], values[s]);
+		}
+	}
+
+	void clear() {
+		for (int i=0; i<size; i++) {
+			int s = slotsInOrder[i];
+			keys[s] = EMPTY;
+			values[s] = 0.0;
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * State of sequential perceptron training at the end of an iteration, from which training can be
+ * resumed (--resume) with the same result as if it had not been interrupted: the weights along
+ * with their averaging accumulators, the iteration and instance counters, the state of the random
+ * number generator, and the order of in-memory training data (which is shuffled in place, so each
+ * iteration's order depends on the previous one).
+ *
+ * The feature index is included so that a resumed run can check that it indexed the same features.
+ *
+ * A checkpoint is a snapshot: it is unaffected by further training, so it can be written
+ * on another thread.
+ */
+class TrainingCheckpoint implements Serializable {
+	private static final long serialVersionUID = -6184047139620981657L;
+
+	final int iterationsCompleted;
+	final long instancesProcessed;
+	final PerceptronWeights weights;
+	final Random rgen;
+	/** positions of the in-memory training sentences in the order they were loaded, in their current order (null if not in memory) */
+	final int[] order;
+	final Map<String,Integer> featureIndexes;
+
+	TrainingCheckpoint(int iterationsCompleted, long instancesProcessed, PerceptronWeights weights, Random rgen,
+		int[] order, Map<String,Integer> featureIndexes) {
+		this.iterationsCompleted = iterationsCompleted;
+		this.instancesProcessed = instancesProcessed;
+		this.weights = weights.copy();
+		this.rgen = copyRandom(rgen);
+		this.order = order;
+		this.featureIndexes = new HashMap<String,Integer>(featureIndexes);
+	}
+
+	/** A generator in the same state as r (which is unaffected). */
+	static Random copyRandom(Random r) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(r);
+			out.close();
+			return (Random)new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		} catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Positions of the sentences in data in the list original (compared by identity),
+	 * e.g., to record the current order of shuffled training data.
+	 */
+	static int[] order(List<LabeledSentence> data, List<LabeledSentence> original) {
+		Map<LabeledSentence,Integer> positions = new IdentityHashMap<LabeledSentence,Integer>();
+		for (int i=0; i<original.size(); i++)
+			positions.put(original.get(i), i);
+		int[] res = new int[data.size()];
+		for (int i=0; i<res.length; i++)
+			res[i] = positions.get(data.get(i));
+		return res;
+	}
+
+	/** Puts the sentences of data (which are those of original) in the order recorded in the checkpoint. */
+	void restoreOrder(List<LabeledSentence> data, List<LabeledSentence> original) {
+		if (order==null || order.length!=data.size())
+			throw new RuntimeException("The checkpoint does not record the order of "+data.size()+" in-memory training sentences");
+		for (int i=0; i<order.length; i++)
+			data.set(i, original.get(order[i]));
+	}
+
+	/** Writes the checkpoint to a temporary file, which then replaces the file at path (so a crash during writing leaves the previous checkpoint intact). */
+	void write(String path) throws IOException {
+		File tmp = new File(path+".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 1<<16)));
+		out.writeObject(this);
+		out.close();
+		File dest = new File(path);
+		if (!tmp.renameTo(dest)) {
+			dest.delete();
+			if (!tmp.renameTo(dest)) throw new IOException("Could not rename "+tmp+" to "+dest);
+		}
+	}
+
+	static TrainingCheckpoint read(String path) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path))));
+		try {
+			return (TrainingCheckpoint)in.readObject();
+		} catch (ClassNotFoundException ex) {
+			throw new IOException(ex.toString());
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -18,49 +18,93 @@
 package edu.cmu.ark.util;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.LinkedList;
+import java.util.Random;
 
 
 /**
  * Iterates through lines or line chunks (groups of nonempty lines delimited by blank lines) 
  * from a (possibly large) file. 
- * [PREVIOUSLY: This reader intented to support shuffling, i.e. randomization of the order in which
- * the lines/chunks from the underlying file are accessed, without modifying the file.
- * However, it was determined that random access of lines of Unicode files is a huge pain 
- * in Java, so this attempt was abandoned.]
+ * 
+ * Chunks can also be read in a shuffled order without modifying the file (see {@link #shuffle(Random, int)}).
+ * This relies on an index of the byte offset at which each chunk starts, which is built in one pass 
+ * over the raw bytes of the file: the newline byte cannot occur inside a multibyte UTF-8 character, 
+ * so line boundaries can be found without decoding. Reading from a chunk start then simply seeks 
+ * the underlying FileChannel to that offset.
  *
  * A blank line is defined as one with no non-whitespace content.
  * 
+ * Text is read as UTF-8 bytes into a reusable buffer, and lines are only decoded when they are 
+ * returned: either as strings ({@link #readChunk()}), or, if a parser is set, split into columns 
+ * by the parser (see {@link #setParser(TabSeparatedParser)}). A line break is "\n" or "\r\n".
+ * 
+ * A text file may be gzip-compressed, which is detected from its first bytes: it is then 
+ * decompressed ahead of the reader on background threads (see {@link ParallelGzipInputStream}). 
+ * A compressed file can only be read from the start, so it cannot be shuffled or read by range.
+ * 
+ * The file may also be a stream that can only be read once: standard input (given as the 
+ * file "-"), or a named pipe or other non-regular file (see {@link #isStream(File)}). A stream 
+ * can be compressed, which is detected without consuming its first bytes; it cannot be 
+ * binarized, shuffled, read by range, or reopened.
+ * 
+ * Reading of a text file can be restricted to the chunks starting in a byte range 
+ * (see {@link #setRange(long, long)}), so that parts of a file can be read in parallel by 
+ * several readers: {@link #splitPoints(File, int)} divides a file into ranges at chunk boundaries.
+ * 
  * The file may optionally be binarized, in which case every entry is a 4-byte integer 
- * and the value 10 serves as the equivalent of a line break.
+ * and the value 10 serves as the equivalent of a line break. Other values are stored with an 
+ * offset of 20 ({@link #BINARY_OFFSET}). A binarized file is read through memory mapping 
+ * (see {@link MappedIntReader}), and each line is given as a view of the mapped file 
+ * rather than copied (see {@link #readBinaryChunk()}).
  *
  * @author Nathan Schneider (nschneid)
  * @since 2012-04-15
  */
 public class LineChunkReader implements Iterable<List> {
+	/** in a binarized file, the value 10 ends a line, and other integers are stored with this added to them */
+	public static final int BINARY_OFFSET = 20;
+	private static final int BINARY_NEWLINE = 10;
+	
 	private int num_chunks_read = 0;
 	
-	private BufferedReader _rdr;	// for reading text
-	private DataInputStream _din;	// for reading binary data
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** threads for decompressing a compressed file (see {@link ParallelGzipInputStream}) */
+	private static int decompression_threads = 1;
+	
+	private InputStream _in;	// for reading text: _fin, or a decompressing stream
+	private FileInputStream _fin;	// for reading uncompressed text (seekable through its channel)
+	private byte[] _bytes;	// buffered text: bytes [_bufPos,_bufLim) have yet to be read
+	private long _bufOffset;	// byte offset in the file of _bytes[0]
+	private int _bufPos, _bufLim;
+	private int _lineStart, _lineEnd;	// the last line read is in _bytes[_lineStart,_lineEnd)
+	private TabSeparatedParser _parser = null;
+	private MappedIntReader _ints;	// for reading binary data
 	private File _f;
 	
-	/** indices to lines in the underlying file of the start of each chunk--in the order in which they are to be accessed */
-	//private List<Integer> offsets = new ArrayList<Integer>();
-	//private int _i = 0;	// lines/chunks read so far in the current order
+	/** byte offsets in the underlying file of the start of each chunk (null until buildIndex() is called) */
+	private long[] _offsets = null;
+	/** chunk numbers in the order in which they are to be accessed (null for file order) */
+	private int[] _order = null;
+	private int _i = 0;	// chunks read so far in the current order
+	private int _cur = 0;	// number of the chunk at which the underlying reader is positioned
+	/** byte range [_rangeStart,_rangeEnd) in which the chunks to be read start (see setRange()) */
+	private long _rangeStart = 0, _rangeEnd = Long.MAX_VALUE;
 	
 	private boolean is_binarized;
+	private boolean is_compressed;
+	private boolean is_stream;
+	private boolean stream_opened = false;
 	private boolean omit_blanks;
 	private boolean by_line;
 	
@@ -80,30 +124,170 @@ public class LineChunkReader implements Iterable<List> {
 	 */
 	public LineChunkReader(File file, boolean binarized, boolean byLine, boolean omitBlanks) throws IOException {
 		_f = file;
+		is_binarized = binarized;
+		by_line = byLine;
+		omit_blanks = omitBlanks;
+		is_stream = isStream(file);
+		if (is_stream) {	// (compression is detected when the stream is opened)
+			if (binarized) throw new IOException("A binarized file must be a regular file (it is memory-mapped): "+file);
+		}
+		else {
+			if (ParallelGzipInputStream.isZstd(file))
+				throw new IOException(ZSTD_UNSUPPORTED+file);
+			is_compressed = ParallelGzipInputStream.isGzip(file);
+			if (is_compressed && binarized)
+				throw new IOException("A binarized file cannot be compressed: "+file);
+		}
+		_open(0);
+	}
+	
+	private static final String ZSTD_UNSUPPORTED = "zstd-compressed input is not supported (decompress it, or recompress it with gzip or bgzip): ";
+	
+	/** Whether the file is standard input ("-") or another file that is not a regular file 
+	 *  (e.g., a named pipe), and so can only be read once. */
+	public static boolean isStream(File file) {
+		return file.getPath().equals("-") || (file.exists() && !file.isFile());
+	}
+	
+	/** Whether the file can be read other than once from the start (e.g., shuffled, or by range): 
+	 *  a regular file that is not compressed. (A stream is not read.) */
+	public static boolean isSeekable(File file) throws IOException {
+		return !isStream(file) && !ParallelGzipInputStream.isGzip(file) && !ParallelGzipInputStream.isZstd(file);
+	}
 	
-		if (binarized) {
-			_din = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
-			_rdr = null;
+	/** Sets the number of threads for decompressing files that are opened subsequently. */
+	public static void setDecompressionThreads(int numThreads) {
+		decompression_threads = Math.max(numThreads, 1);
+	}
+	
+	/** Opens the file (if necessary) and positions the reader at the given byte offset. */
+	private void _open(long offset) throws IOException {
+		if (is_binarized) {	// (only remapped if the offset is outside the current window)
+			if (_ints==null) _ints = new MappedIntReader(_f);
+			_ints.seek(offset);
+			return;
+		}
+		if (is_stream) {
+			if (stream_opened) throw new IOException("LineChunkReader: "+_f+" is a stream, which can only be read once");
+			stream_opened = true;
+			InputStream raw = new BufferedInputStream((_f.getPath().equals("-")) ? System.in : new FileInputStream(_f), 1<<16);
+			raw.mark(4);
+			byte[] magic = ParallelGzipInputStream.readMagic(raw);
+			raw.reset();
+			if (ParallelGzipInputStream.isZstd(magic))
+				throw new IOException(ZSTD_UNSUPPORTED+_f);
+			is_compressed = ParallelGzipInputStream.isGzip(magic);
+			_in = (is_compressed) ? new ParallelGzipInputStream(raw, decompression_threads) : raw;
+		}
+		else if (is_compressed) {
+			if (offset!=0) throw new IOException("LineChunkReader: cannot seek in a compressed file");
+			if (_in!=null) _in.close();
+			_in = new ParallelGzipInputStream(_f, decompression_threads);
 		}
 		else {
-			_rdr = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-			_din = null;
+			if (_fin==null) _fin = new FileInputStream(_f);
+			if (offset!=_fin.getChannel().position())
+				_fin.getChannel().position(offset);
+			_in = _fin;
 		}
-		is_binarized = binarized;
-		by_line = byLine;
-		omit_blanks = omitBlanks;
+		// anything buffered from the old position is invalid
+		if (_bytes==null) _bytes = new byte[1<<16];
+		_bufPos = _bufLim = 0;
+		_bufOffset = offset;
+	}
+	
+	/**
+	 * Restricts reading (in file order) to the chunks of a text file that start in the byte range 
+	 * [start,end), and positions the reader at start, which must be 0 or the start of a chunk 
+	 * (see {@link #splitPoints(File, int)}). Requires chunk reading mode.
+	 */
+	public void setRange(long start, long end) throws IOException {
+		if (is_binarized || is_compressed || is_stream || by_line) throw new RuntimeException("LineChunkReader.setRange(): requires an uncompressed regular text file in chunk reading mode");
+		if (_order!=null) throw new RuntimeException("LineChunkReader.setRange(): not supported in shuffled mode");
+		_rangeStart = start;
+		_rangeEnd = end;
+		_open(start);
+		num_chunks_read = 0;
+	}
+	
+	/**
+	 * Divides a text file into (at most) n byte ranges of roughly equal size that each begin at the 
+	 * start of a chunk: returns the offsets at which the ranges begin, followed by the length of the file. 
+	 * The nominal split points are moved forward to the next chunk start (see {@link #nextChunkStart(File, long)}), 
+	 * so ranges that would be empty are dropped.
+	 */
+	public static long[] splitPoints(File file, int n) throws IOException {
+		long length = file.length();
+		long[] points = new long[n+1];
+		int k = 0;
+		points[k++] = 0;
+		for (int i=1; i<n; i++) {
+			long p = nextChunkStart(file, (long)(length*((double)i/n)));
+			if (p>points[k-1] && p<length) points[k++] = p;
+		}
+		points[k++] = length;
+		return Arrays.copyOf(points, k);
+	}
+	
+	/**
+	 * The byte offset of the first chunk of a text file that starts at or after the given offset 
+	 * (the length of the file if there is none). Only the bytes from the offset up to the chunk start 
+	 * are scanned, so whether the line at the offset is preceded by a blank line is not known: 
+	 * a chunk starting exactly there is skipped in favor of the next one. (Ranges are consistent 
+	 * as long as their boundaries all come from this method.)
+	 */
+	public static long nextChunkStart(File file, long offset) throws IOException {
+		if (offset<=0) return 0;
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			fin.getChannel().position(offset-1);
+			BufferedInputStream in = new BufferedInputStream(fin, 1<<16);
+			long pos = offset-1;
+			boolean atLineStart = false;	// whether the partial line at the offset has been skipped
+			boolean prevBlank = false, blank = true;
+			long lineStart = -1;
+			int b;
+			for (; (b = in.read())!=-1; pos++) {
+				if (!atLineStart) {
+					if (b=='\n') {
+						atLineStart = true;
+						lineStart = pos+1;
+					}
+				}
+				else if (b=='\n') {
+					prevBlank = blank;
+					lineStart = pos+1;
+					blank = true;
+				}
+				else if (b>' ' && blank) {	// (as in buildIndex())
+					if (prevBlank) return lineStart;
+					blank = false;
+				}
+			}
+			return pos;	// the end of the file
+		} finally {
+			fin.close();
+		}
+	}
+	
+	/** Sets a parser for lines of text: chunks are then read with {@link #readColumnChunk()}, 
+	 *  which gives each line as its columns. (Set before reading.) */
+	public void setParser(TabSeparatedParser parser) {
+		if (is_binarized) throw new RuntimeException("LineChunkReader.setParser(): requires a text file");
+		_parser = parser;
 	}
 	
 	public void close() {
 		try {
 			if (is_binarized) {
-				if (_din!=null)
-					_din.close();
-				_din = null;
+				if (_ints!=null)
+					_ints.close();
+				_ints = null;
 			} else {
-				if (_rdr!=null)
-					_rdr.close();
-				_rdr = null;
+				if (_in!=null)
+					_in.close();
+				_in = null;
+				_fin = null;	// (the same stream as _in, or null)
 			}
 		} catch (IOException ex) {
 			ex.printStackTrace();
@@ -113,74 +297,248 @@ public class LineChunkReader implements Iterable<List> {
 	
 	public void reopen() throws IOException {
 		if (isOpen()) throw new IOException("LineChunkReader.reopen(): file is already open");
-		if (is_binarized)
-			_din = new DataInputStream(new BufferedInputStream(new FileInputStream(_f)));
-		else
-			_rdr = new BufferedReader(new InputStreamReader(new FileInputStream(_f)));
+		_open(_rangeStart);
 		num_chunks_read = 0;
+		_i = 0;
+		_cur = 0;
 	}
 	
-	public boolean isOpen() { return (is_binarized) ? _din!=null : _rdr!=null; }
+	/**
+	 * Scans the file once to record the byte offset at which each chunk starts.
+	 * Called automatically by shuffle() if necessary. Requires chunk reading mode.
+	 */
+	public void buildIndex() throws IOException {
+		if (by_line) throw new RuntimeException("LineChunkReader.buildIndex(): requires chunk reading mode");
+		if (is_compressed || is_stream) throw new IOException("LineChunkReader.buildIndex(): not supported for a compressed file or a stream: "+_f);
+		long[] offsets = new long[1024];
+		int n = 0;
+		boolean inChunk = false;
+		if (is_binarized) {
+			MappedIntReader in = new MappedIntReader(_f);
+			long lineStart = 0;
+			try {
+				IntBuffer ln;
+				while ((ln = in.readUntil(BINARY_NEWLINE))!=null) {	// (including a last line that is not terminated)
+					boolean blank = !ln.hasRemaining();
+					if (!blank && !inChunk) {
+						if (n==offsets.length) offsets = Arrays.copyOf(offsets, 2*n);
+						offsets[n++] = lineStart;
+					}
+					inChunk = !blank;
+					lineStart = in.position();
+				}
+			} finally {
+				in.close();
+			}
+		}
+		else {
+			// A line is blank iff it consists of bytes <= ' ' (as for String.trim()): 
+			// bytes of non-ASCII characters are all >= 0x80.
+			BufferedInputStream in = new BufferedInputStream(new FileInputStream(_f), 1<<16);
+			byte[] buf = new byte[1<<16];
+			long pos = 0, lineStart = 0;
+			boolean blank = true;
+			try {
+				int len;
+				while ((len = in.read(buf))!=-1) {
+					for (int k=0; k<len; k++, pos++) {
+						int b = buf[k] & 0xff;
+						if (b=='\n') {
+							if (!blank && !inChunk) {
+								if (n==offsets.length) offsets = Arrays.copyOf(offsets, 2*n);
+								offsets[n++] = lineStart;
+							}
+							inChunk = !blank;
+							lineStart = pos+1;
+							blank = true;
+						}
+						else if (b>' ')
+							blank = false;
+					}
+				}
+				if (!blank && !inChunk) {	// last line is not terminated
+					if (n==offsets.length) offsets = Arrays.copyOf(offsets, 2*n);
+					offsets[n++] = lineStart;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		_offsets = Arrays.copyOf(offsets, n);
+	}
 	
-	public boolean isBinarized() { return is_binarized; }
+	/** Number of chunks in the file (requires the index: see buildIndex()). */
+	public int getNumChunks() {
+		if (_offsets==null) throw new RuntimeException("LineChunkReader.getNumChunks(): requires buildIndex()");
+		return _offsets.length;
+	}
 	
-	private String _readLine() {
+	/**
+	 * Randomizes the order in which chunks will be read, starting with the next iteration.
+	 * The chunks are divided into blocks of blockSize chunks that are adjacent in the file;
+	 * the order of the blocks is shuffled, but chunks within a block are read in file order. 
+	 * Thus blockSize=1 gives a fully random order, while larger blocks require fewer seeks.
+	 */
+	public void shuffle(Random rgen, int blockSize) throws IOException {
+		if (_rangeEnd!=Long.MAX_VALUE || _rangeStart>0) throw new RuntimeException("LineChunkReader.shuffle(): not supported for a range (see setRange())");
+		if (_offsets==null) buildIndex();
+		_order = blockShuffledOrder(_offsets.length, blockSize, rgen);
+		_i = 0;
+	}
+	
+	/** A random permutation of 0..n-1 made by shuffling the order of blocks of blockSize consecutive numbers. */
+	public static int[] blockShuffledOrder(int n, int blockSize, Random rgen) {
+		if (blockSize<1) throw new IllegalArgumentException("LineChunkReader.blockShuffledOrder(): block size must be positive");
+		List<Integer> blocks = new ArrayList<Integer>();
+		for (int b=0; b*(long)blockSize<n; b++)
+			blocks.add(b);
+		Collections.shuffle(blocks, rgen);
+		int[] order = new int[n];
+		int i = 0;
+		for (int b : blocks)
+			for (int c=b*blockSize; c<n && c<(b+1)*blockSize; c++)
+				order[i++] = c;
+		return order;
+	}
+	
+	/** In shuffled mode, positions the underlying reader at the start of the next chunk in the current order.
+	 *  @return false if all chunks have been read */
+	private boolean _seekNextChunk() {
+		if (_i>=_order.length) return false;
+		int c = _order[_i];
 		try {
-			return _rdr.readLine();
+			if (c!=_cur || !isOpen())
+				_open(_offsets[c]);
 		} catch (IOException ex) {
 			ex.printStackTrace();
 			System.exit(1);
 		}
-		return null;
+		_cur = c+1;	// after reading chunk c, the reader will be at the start of chunk c+1
+		_i++;
+		return true;
 	}
 	
-	/** Reads integers up until (but not including) the value 10 or the end of the file.
-	 *  Subtracts 20 from each integer.
-	 */
-	private int[] _readBinaryLine() {
-		if (_din==null) return null;
-		List<Integer> vals = new LinkedList<Integer>();
+	public boolean isOpen() { return (is_binarized) ? _ints!=null : _in!=null; }
+	
+	public boolean isBinarized() { return is_binarized; }
+	
+	public boolean isCompressed() { return is_compressed; }
+	
+	public boolean isStream() { return is_stream; }
+	
+	/** Reads the next line of text into the buffer, setting _lineStart and _lineEnd (excluding the line break).
+	 *  @return false at the end of the file */
+	private boolean _readLineBytes() {
 		try {
+			int i = _bufPos;
 			while (true) {
-				int v = _din.readInt();
-				if (v==10) {
-					break;
+				for (; i<_bufLim; i++) {
+					if (_bytes[i]=='\n') {
+						_lineStart = _bufPos;
+						_lineEnd = (i>_bufPos && _bytes[i-1]=='\r') ? i-1 : i;
+						_bufPos = i+1;
+						return true;
+					}
 				}
-				vals.add(v-20);
+				// no line break in the buffer: move the partial line to the start 
+				// (growing the buffer if the line fills it), and read more
+				int len = _bufLim-_bufPos;
+				_bufOffset += _bufPos;
+				if (_bufPos>0)
+					System.arraycopy(_bytes, _bufPos, _bytes, 0, len);
+				else if (len==_bytes.length)
+					_bytes = Arrays.copyOf(_bytes, 2*_bytes.length);
+				_bufPos = 0;
+				_bufLim = i = len;
+				int n = _in.read(_bytes, _bufLim, _bytes.length-_bufLim);
+				if (n<0) {
+					if (len==0) return false;
+					_lineStart = 0;	// last line is not terminated
+					_lineEnd = (_bytes[len-1]=='\r') ? len-1 : len;
+					_bufPos = _bufLim;
+					return true;
+				}
+				_bufLim += n;
 			}
-		}
-		catch (EOFException ex) { close(); }
-		catch (IOException ex) {
+		} catch (IOException ex) {
 			ex.printStackTrace();
 			System.exit(1);
 		}
-		
-		int[] vv = new int[vals.size()];
-		int i=0;
-		for (int v : vals) {
-			vv[i] = v;
-			i++;
+		return false;
+	}
+	
+	/** Whether the last line read consists of bytes <= ' ' (as for String.trim(): 
+	 *  bytes of non-ASCII characters are all >= 0x80). */
+	private boolean _lineIsBlank() {
+		for (int i=_lineStart; i<_lineEnd; i++)
+			if ((_bytes[i] & 0xff)>' ') return false;
+		return true;
+	}
+	
+	/** The last line read, decoded, or split into columns if a parser is set. */
+	private Object _line() {
+		if (_parser!=null) return _parser.parse(_bytes, _lineStart, _lineEnd);
+		return new String(_bytes, _lineStart, _lineEnd-_lineStart, UTF8);
+	}
+	
+	/** Reads integers up until (but not including) the value 10 or the end of the file, 
+	 *  as a view of the mapped file (the values are not decoded: see {@link #decode(IntBuffer)}).
+	 *  @return null at the end of the file
+	 */
+	private IntBuffer _readBinaryLine() {
+		if (_ints==null) return null;
+		IntBuffer ln = null;
+		try {
+			ln = _ints.readUntil(BINARY_NEWLINE);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+			System.exit(1);
 		}
-		return vv;
+		if (ln==null) close();
+		return ln;
+	}
+	
+	/** The values of a line read from a binarized file: its integers minus {@link #BINARY_OFFSET}. */
+	public static int[] decode(IntBuffer ln) {
+		int[] vals = new int[ln.remaining()];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = ln.get(ln.position()+i) - BINARY_OFFSET;
+		return vals;
 	}
 	
 	/** Assuming the underlying file reader is at the beginning of a chunk, read until the start of the next chunk. 
 	 *  When reading in line-by-line mode, each "chunk" is actually a single line.
 	 */
+	@SuppressWarnings("unchecked")
 	public List<String> readChunk() {
-		List<String> chk = new ArrayList<String>();
-		String ln;
-		while ((ln = _readLine())!=null) {
-			boolean isBlank = (ln.trim().length()==0);
+		if (_parser!=null) throw new RuntimeException("LineChunkReader.readChunk(): a parser is set (see readColumnChunk())");
+		return (List<String>)(List<?>)_readTextChunk();	// (the lines are decoded strings)
+	}
+	
+	/** As readChunk(), giving each line as its columns (see {@link #setParser(TabSeparatedParser)}). */
+	@SuppressWarnings("unchecked")
+	public List<String[]> readColumnChunk() {
+		if (_parser==null) throw new RuntimeException("LineChunkReader.readColumnChunk(): requires a parser");
+		return (List<String[]>)(List<?>)_readTextChunk();	// (the lines are parsed columns)
+	}
+	
+	/** The lines of the next chunk, each decoded or parsed (see _line()). */
+	private List<Object> _readTextChunk() {
+		if (_order!=null && !_seekNextChunk()) return null;
+		List<Object> chk = new ArrayList<Object>();
+		while (_readLineBytes()) {
+			boolean isBlank = _lineIsBlank();
 			if (this.by_line && !this.omit_blanks) {
-				chk.add(ln);
+				chk.add(_line());
 				break;
 			}
 			else if (isBlank && chk.size()==0)
 				continue;	// first line of the file is blank, or multiple blanks precede this chunk
 			else if (isBlank || this.by_line)
 				break;
-			chk.add(ln);
+			else if (chk.size()==0 && _bufOffset+_lineStart>=_rangeEnd)
+				break;	// the chunk starts beyond the range (see setRange())
+			chk.add(_line());	// (only lines that are kept are decoded)
 		}
 		
 		if (chk.size()==0) { return null; }
@@ -188,11 +546,14 @@ public class LineChunkReader implements Iterable<List> {
 		return chk;
 	}
 	
-	public List<int[]> readBinaryChunk() {
-		List<int[]> chk = new ArrayList<int[]>();
-		int[] ln;
+	/** As readChunk(), for a binarized file: each line is a view of the mapped file, holding the 
+	 *  integers as stored (the values plus {@link #BINARY_OFFSET}: see {@link #decode(IntBuffer)}). */
+	public List<IntBuffer> readBinaryChunk() {
+		if (_order!=null && !_seekNextChunk()) return null;
+		List<IntBuffer> chk = new ArrayList<IntBuffer>();
+		IntBuffer ln;
 		while ((ln = _readBinaryLine())!=null) {
-			boolean isBlank = (ln.length==0);
+			boolean isBlank = !ln.hasRemaining();
 			if (this.by_line && !this.omit_blanks) {
 				chk.add(ln);
 				break;
@@ -216,11 +577,12 @@ public class LineChunkReader implements Iterable<List> {
 		return chk.get(0);
 	}
 	
+	/** The values of the next line of a binarized file (see {@link #decode(IntBuffer)}). */
 	public int[] readBinaryLine() {
 		if (!by_line) throw new RuntimeException("LineChunkReader.readBinaryLine(): requires line-by-line reading mode");
-		List<int[]> chk = readBinaryChunk();
+		List<IntBuffer> chk = readBinaryChunk();
 		if (chk==null) return null;
-		return chk.get(0);
+		return decode(chk.get(0));
 	}
 	
 	public int getNumChunksRead() {
@@ -235,8 +597,14 @@ public class LineChunkReader implements Iterable<List> {
 	
 	
 	
+	/** Iteration starts from the first chunk (in the current order, if shuffled) unless 
+	 *  the file is open in file order, in which case it continues from the current position. */
 	public Iterator<List> iterator() {
-		if (!isOpen()) {
+		if (_order!=null) {
+			_i = 0;
+			num_chunks_read = 0;
+		}
+		else if (!isOpen()) {
 			try {
 				reopen();
 			} catch (IOException ex) {
@@ -250,8 +618,8 @@ public class LineChunkReader implements Iterable<List> {
 			private List _chunk = null;
 			public boolean hasNext() {
 				if (_chunk!=null) return true;	// multiple calls to hasNext() without next()
-				else if (!isOpen()) return false;
-				_chunk = (is_binarized) ? _chkrdr.readBinaryChunk() : _chkrdr.readChunk();
+				else if ((_order==null) ? !isOpen() : _i>=_order.length) return false;
+				_chunk = (is_binarized) ? _chkrdr.readBinaryChunk() : (_parser!=null) ? _chkrdr.readColumnChunk() : _chkrdr.readChunk();
 				if (_chunk==null) close();	// close the file
 				return _chunk!=null;
 			}
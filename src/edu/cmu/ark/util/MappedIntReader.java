@@ -0,0 +1,147 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Sequentially reads big-endian 4-byte integers from a file through memory mapping.
+ * The file is mapped one window at a time, so files larger than 2 GB are supported.
+ * Runs of integers can also be read without copying them, as views of the mapped file 
+ * (see {@link #readUntil(int)}).
+ */
+public class MappedIntReader {
+	/** default window size in bytes (a multiple of 4) */
+	public static final int DEFAULT_WINDOW = 1<<28;
+
+	private final RandomAccessFile _raf;
+	private final FileChannel _ch;
+	private final long _end;	// file offset at which to stop reading
+	private final int _window;
+
+	private long _bufStart;	// file offset of the start of the current window
+	private IntBuffer _buf;
+
+	public MappedIntReader(File file) throws IOException {
+		this(file, 0, file.length(), DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param file: the file to read from
+	 * @param start: offset (in bytes, a multiple of 4) of the first integer to read
+	 * @param end: offset (in bytes) at which to stop reading
+	 * @param window: maximum number of bytes to map at once (a multiple of 4)
+	 */
+	public MappedIntReader(File file, long start, long end, int window) throws IOException {
+		if (start%4!=0 || window%4!=0) throw new IllegalArgumentException("MappedIntReader: offsets and window size must be multiples of 4");
+		_raf = new RandomAccessFile(file, "r");
+		_ch = _raf.getChannel();
+		_end = end;
+		_window = window;
+		map(start);
+	}
+
+	private void map(long offset) throws IOException {
+		long len = Math.min(_window, _end-offset);
+		MappedByteBuffer mbuf = _ch.map(FileChannel.MapMode.READ_ONLY, offset, len);
+		_buf = mbuf.asIntBuffer();	// big-endian, as written by DataOutputStream
+		_bufStart = offset;
+	}
+
+	/** File offset (in bytes) of the next integer to be read. */
+	public long position() {
+		return _bufStart + 4L*_buf.position();
+	}
+
+	/** Moves to the given file offset (in bytes, a multiple of 4), remapping only if it is outside the current window. */
+	public void seek(long offset) throws IOException {
+		if (offset%4!=0) throw new IllegalArgumentException("MappedIntReader.seek(): offset must be a multiple of 4");
+		if (offset>=_bufStart && offset<_bufStart+4L*_buf.limit())
+			_buf.position((int)((offset-_bufStart)/4));
+		else
+			map(offset);
+	}
+
+	public boolean hasNext() {
+		return position() < _end;
+	}
+
+	public int readInt() throws IOException {
+		if (!_buf.hasRemaining()) {
+			if (!hasNext()) throw new java.io.EOFException();
+			map(position());
+		}
+		return _buf.get();
+	}
+
+	/**
+	 * Reads the integers up to (but not including) the next occurrence of the delimiter, or up to 
+	 * the end, and moves past the delimiter. The integers are not copied: the result is a view of 
+	 * the mapped file, which stays valid after the reader moves on or is closed. If they extend past 
+	 * the current window, the window is remapped to start with them.
+	 * @return null at the end
+	 */
+	public IntBuffer readUntil(int delimiter) throws IOException {
+		if (!hasNext()) return null;
+		if (!_buf.hasRemaining()) map(position());
+		int start = _buf.position();
+		int lim = _buf.limit();
+		int i = start;
+		while (i<lim && _buf.get(i)!=delimiter) i++;
+		if (i==lim && _bufStart+4L*lim<_end) {	// continues in the next window
+			if (start==0) throw new IOException("MappedIntReader.readUntil(): more than "+(_window/4)+" integers before the delimiter");
+			map(_bufStart+4L*start);
+			return readUntil(delimiter);
+		}
+		IntBuffer view = _buf.duplicate();
+		view.limit(i);
+		IntBuffer res = view.slice();
+		_buf.position((i<lim) ? i+1 : lim);
+		return res;
+	}
+
+	/** Reads n integers into a new array. */
+	public int[] readInts(int n) throws IOException {
+		int[] vals = new int[n];
+		int i = 0;
+		while (i<n) {
+			if (!_buf.hasRemaining()) {
+				if (!hasNext()) throw new java.io.EOFException();
+				map(position());
+			}
+			int k = Math.min(n-i, _buf.remaining());
+			_buf.get(vals, i, k);
+			i += k;
+		}
+		return vals;
+	}
+
+	public void close() {
+		try {
+			_raf.close();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark.util;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Reads a gzip-compressed file or stream, decompressing it ahead of the reader on background threads.
+ *
+ * A file in the BGZF format (as written by bgzip) consists of gzip members ("blocks") that each
+ * record their compressed size in a header field, so blocks can be located without decompressing
+ * them: they are read by the reading thread and decompressed in parallel on a pool of threads,
+ * and their contents are returned in order. Any other gzip file (with one member, or several,
+ * e.g. from concatenating gzip files) is decompressed with GZIPInputStream on a single
+ * background thread, in buffers that are handed over to the reading thread.
+ *
+ * Either way, up to a fixed number of blocks or buffers are decompressed ahead of the reader.
+ */
+public class ParallelGzipInputStream extends InputStream {
+	private static final int BUFFER_SIZE = 1<<20;	// for files that are not in the BGZF format
+	private static final int AHEAD_PER_THREAD = 8;	// decompressed blocks or buffers per thread
+
+	private final InputStream _raw;	// the compressed file
+	private final boolean _bgzf;
+	private final GZIPInputStream _gz;	// if not BGZF (only read by the pool's single thread)
+	private final ExecutorService _pool;
+	private final int _maxAhead;
+	private final ArrayDeque<Future<byte[]>> _ahead = new ArrayDeque<Future<byte[]>>();
+	private boolean _end = false;	// whether everything has been submitted for decompression
+	private byte[] _cur = new byte[0];
+	private int _pos = 0;
+
+	/** Whether the file starts with the gzip magic number. */
+	public static boolean isGzip(File file) throws IOException {
+		return isGzip(readMagic(file));
+	}
+
+	/** Whether the file starts with the zstd magic number. */
+	public static boolean isZstd(File file) throws IOException {
+		return isZstd(readMagic(file));
+	}
+
+	/** Whether the given first bytes (see {@link #readMagic(InputStream)}) are the gzip magic number. */
+	public static boolean isGzip(byte[] magic) {
+		return (magic[0] & 0xff)==0x1f && (magic[1] & 0xff)==0x8b;
+	}
+
+	/** Whether the given first bytes (see {@link #readMagic(InputStream)}) are the zstd magic number. */
+	public static boolean isZstd(byte[] magic) {
+		return (magic[0] & 0xff)==0x28 && (magic[1] & 0xff)==0xb5 && (magic[2] & 0xff)==0x2f && (magic[3] & 0xff)==0xfd;
+	}
+
+	private static byte[] readMagic(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return readMagic(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads the first 4 bytes of a stream (zeros past its end); to examine a stream without 
+	 *  consuming them, mark it before and reset it after. */
+	public static byte[] readMagic(InputStream in) throws IOException {
+		byte[] magic = new byte[4];
+		readFully(in, magic, 0, magic.length);
+		return magic;
+	}
+
+	/**
+	 * @param numThreads: number of threads for decompressing a BGZF file (a file in any other
+	 * format is decompressed on a single thread)
+	 */
+	public ParallelGzipInputStream(File file, int numThreads) throws IOException {
+		this(new FileInputStream(file), numThreads);
+	}
+
+	/** Decompresses a stream (e.g., standard input), which is closed along with this one. */
+	public ParallelGzipInputStream(InputStream in, int numThreads) throws IOException {
+		_raw = new BufferedInputStream(in, 1<<16);
+		_raw.mark(64);
+		byte[] header = new byte[18];
+		_bgzf = (readFully(_raw, header, 0, header.length)==header.length && bgzfBlockSize(header)>0);
+		_raw.reset();
+		if (!_bgzf) numThreads = 1;
+		_gz = (_bgzf) ? null : new GZIPInputStream(_raw, 1<<16);
+		_pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gzip decompression");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		_maxAhead = AHEAD_PER_THREAD*numThreads;
+	}
+
+	public boolean isBgzf() { return _bgzf; }
+
+	/** The total size of a BGZF block given its header (the first 18 bytes), or -1 if the header is not that of a BGZF block:
+	 *  a gzip member whose only extra subfield is "BC" with the block size minus 1. */
+	private static int bgzfBlockSize(byte[] h) {
+		if ((h[0] & 0xff)!=0x1f || (h[1] & 0xff)!=0x8b || h[2]!=8 || (h[3] & 4)==0) return -1;	// magic, deflate, FEXTRA
+		int xlen = (h[10] & 0xff) | (h[11] & 0xff)<<8;
+		if (xlen!=6 || h[12]!='B' || h[13]!='C' || h[14]!=2 || h[15]!=0) return -1;
+		return ((h[16] & 0xff) | (h[17] & 0xff)<<8) + 1;
+	}
+
+	private static int readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+		int n = 0;
+		while (n<len) {
+			int k = in.read(buf, off+n, len-n);
+			if (k<0) break;
+			n += k;
+		}
+		return n;
+	}
+
+	/** Submits blocks or buffers for decompression until the maximum number are ahead of the reader. */
+	private void fill() throws IOException {
+		while (!_end && _ahead.size()<_maxAhead) {
+			if (_bgzf) {
+				byte[] header = new byte[18];
+				int n = readFully(_raw, header, 0, header.length);
+				if (n==0) { _end = true; break; }
+				int size = (n==header.length) ? bgzfBlockSize(header) : -1;
+				if (size<header.length+8) throw new IOException("ParallelGzipInputStream: invalid BGZF block header");
+				final byte[] block = Arrays.copyOf(header, size);
+				if (readFully(_raw, block, header.length, size-header.length)<size-header.length)
+					throw new IOException("ParallelGzipInputStream: truncated BGZF block");
+				_ahead.add(_pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						int isize = (block[block.length-4] & 0xff) | (block[block.length-3] & 0xff)<<8
+							| (block[block.length-2] & 0xff)<<16 | (block[block.length-1] & 0xff)<<24;
+						byte[] out = new byte[isize];
+						GZIPInputStream gz = new GZIPInputStream(new ByteArrayInputStream(block), block.length);	// (checks the CRC)
+						if (readFully(gz, out, 0, isize)<isize || gz.read()!=-1)
+							throw new IOException("ParallelGzipInputStream: BGZF block does not match its uncompressed size");
+						return out;
+					}
+				}));
+			}
+			else {
+				_ahead.add(_pool.submit(new Callable<byte[]>() {	// (run in order, as the pool has one thread)
+					public byte[] call() throws IOException {
+						byte[] buf = new byte[BUFFER_SIZE];
+						int n = readFully(_gz, buf, 0, buf.length);
+						if (n==0) return null;
+						return (n<buf.length) ? Arrays.copyOf(buf, n) : buf;
+					}
+				}));
+			}
+		}
+	}
+
+	/** Moves on to the next decompressed block or buffer.
+	 *  @return false at the end of the file */
+	private boolean next() throws IOException {
+		fill();
+		if (_ahead.isEmpty()) return false;
+		byte[] buf;
+		try {
+			buf = _ahead.poll().get();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException ex) {
+			throw (ex.getCause() instanceof IOException) ? (IOException)ex.getCause() : new IOException(ex.getCause());
+		}
+		if (buf==null) {	// end of a file that is not in the BGZF format
+			_end = true;
+			_ahead.clear();	// (the remaining buffers are also empty)
+			return false;
+		}
+		_cur = buf;
+		_pos = 0;
+		return true;
+	}
+
+	public int read() throws IOException {
+		while (_pos==_cur.length)
+			if (!next()) return -1;
+		return _cur[_pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len==0) return 0;
+		while (_pos==_cur.length)
+			if (!next()) return -1;
+		int n = Math.min(len, _cur.length-_pos);
+		System.arraycopy(_cur, _pos, b, off, n);
+		_pos += n;
+		return n;
+	}
+
+	public void close() throws IOException {
+		_pool.shutdownNow();
+		_raw.close();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark.util;
+
+import java.text.NumberFormat;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Iterates over the items of another iterator, which is consumed ahead of time by a background
+ * thread into a bounded queue. Thus the work of producing the items (e.g., reading and parsing
+ * a file) overlaps with the work done on them by the consumer.
+ *
+ * Counters show which side is the bottleneck: time the producer spent waiting because the
+ * queue was full (the consumer is slower), time the consumer spent waiting because the queue
+ * was empty (the producer is slower), and the average queue depth when an item was taken.
+ *
+ * null items are passed through. An exception thrown by the source iterator is rethrown
+ * to the consumer (wrapped in a RuntimeException).
+ */
+public class PrefetchingIterator<T> implements Iterator<T> {
+	private static final Object NULL_ITEM = new Object();
+	private static final Object END = new Object();
+
+	private final BlockingQueue<Object> _queue;
+	private final Thread _thread;
+	private final String _name;
+	private Object _next = null;	// item taken from the queue but not yet returned
+	private boolean _done = false;
+
+	private volatile long producerStallNanos = 0;
+	private long consumerStallNanos = 0;
+	private long numTaken = 0;
+	private long sumQueueDepth = 0;
+
+	/**
+	 * @param source: iterator to be consumed in the background (it must not be used by anyone else)
+	 * @param capacity: maximum number of items to read ahead
+	 * @param name: if not null, a line of statistics labeled with this name is printed to stderr
+	 * when the iteration is complete
+	 */
+	public PrefetchingIterator(final Iterator<T> source, int capacity, String name) {
+		_queue = new ArrayBlockingQueue<Object>(capacity);
+		_name = name;
+		_thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (source.hasNext()) {
+						T item = source.next();
+						enqueue((item==null) ? NULL_ITEM : item);
+					}
+					enqueue(END);
+				} catch (InterruptedException ex) {
+					// the consumer gave up (see close())
+				} catch (Throwable ex) {
+					try {
+						enqueue(ex);
+					} catch (InterruptedException ex2) { }
+				}
+			}
+		}, "prefetch"+((name==null) ? "" : "-"+name));
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	private void enqueue(Object item) throws InterruptedException {
+		if (!_queue.offer(item)) {
+			long t0 = System.nanoTime();
+			_queue.put(item);
+			producerStallNanos += System.nanoTime()-t0;
+		}
+	}
+
+	public boolean hasNext() {
+		if (_done) return false;
+		if (_next!=null) return true;
+		int depth = _queue.size();
+		Object item = _queue.poll();
+		if (item==null) {
+			long t0 = System.nanoTime();
+			try {
+				item = _queue.take();
+			} catch (InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+			consumerStallNanos += System.nanoTime()-t0;
+		}
+		if (item==END) {
+			_done = true;
+			if (_name!=null) System.err.println(this);
+			return false;
+		}
+		if (item instanceof Throwable) {
+			_done = true;
+			throw new RuntimeException("PrefetchingIterator: error in the background thread", (Throwable)item);
+		}
+		numTaken++;
+		sumQueueDepth += depth;
+		_next = item;
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		Object item = _next;
+		_next = null;
+		return (item==NULL_ITEM) ? null : (T)item;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("PrefetchingIterator.remove() not supported");
+	}
+
+	/** Stops the background thread (if the consumer does not need the rest of the items). */
+	public void close() {
+		_done = true;
+		_thread.interrupt();
+	}
+
+	/** Seconds the producer spent blocked on a full queue. */
+	public double getProducerStallTime() { return producerStallNanos/1e9; }
+
+	/** Seconds the consumer spent blocked on an empty queue. */
+	public double getConsumerStallTime() { return consumerStallNanos/1e9; }
+
+	/** Average number of items waiting in the queue when the consumer asked for the next one. */
+	public double getAverageQueueDepth() { return (numTaken==0) ? 0.0 : (double)sumQueueDepth/numTaken; }
+
+	public String toString() {
+		NumberFormat nf = NumberFormat.getInstance();
+		nf.setMaximumFractionDigits(3);
+		return ((_name==null) ? "prefetch" : _name)+": "+numTaken+" items, avg. queue depth "
+			+nf.format(getAverageQueueDepth())+"/"+(_queue.size()+_queue.remainingCapacity())
+			+", reader waited "+nf.format(getProducerStallTime())+" s (queue full), consumer waited "
+			+nf.format(getConsumerStallTime())+" s (queue empty)";
+	}
+}
@@ -0,0 +1,109 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded cache with segmented LRU eviction. New entries go into a probationary segment;
+ * an entry that is requested again while still cached is promoted to a protected segment.
+ * Entries evicted from the protected segment get a second chance in the probationary segment.
+ * Under a skewed (Zipfian) access pattern this keeps the frequent keys resident, whereas
+ * a long run of one-off keys can only flush the probationary segment.
+ *
+ * Hit and miss counts are kept so the hit rate can be reported.
+ * All methods are synchronized, so an instance may be shared across threads.
+ */
+public class SegmentedLRUCache<K,V> {
+	private final int probationCapacity;
+	private final int protectedCapacity;
+
+	/** access-ordered, so iteration starts with the least recently used entry */
+	private final LinkedHashMap<K,V> probation = new LinkedHashMap<K,V>(16, 0.75f, true);
+	private final LinkedHashMap<K,V> protectedSegment = new LinkedHashMap<K,V>(16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity: maximum number of entries; 80% of this is reserved for the protected segment
+	 */
+	public SegmentedLRUCache(int capacity) {
+		if (capacity<2) throw new IllegalArgumentException("SegmentedLRUCache: capacity must be at least 2, got "+capacity);
+		protectedCapacity = (int)(capacity*0.8);
+		probationCapacity = capacity - protectedCapacity;
+	}
+
+	/** @return the cached value, or null if the key is not present */
+	public synchronized V get(K key) {
+		V v = protectedSegment.get(key);
+		if (v!=null) {
+			hits++;
+			return v;
+		}
+		v = probation.remove(key);
+		if (v==null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		// second request: promote to the protected segment
+		protectedSegment.put(key, v);
+		if (protectedSegment.size()>protectedCapacity) {
+			Map.Entry<K,V> demoted = removeEldest(protectedSegment);
+			probation.put(demoted.getKey(), demoted.getValue());
+			if (probation.size()>probationCapacity)
+				removeEldest(probation);
+		}
+		return v;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (protectedSegment.containsKey(key)) {
+			protectedSegment.put(key, value);
+			return;
+		}
+		probation.put(key, value);
+		if (probation.size()>probationCapacity)
+			removeEldest(probation);
+	}
+
+	private static <K,V> Map.Entry<K,V> removeEldest(LinkedHashMap<K,V> segment) {
+		Iterator<Map.Entry<K,V>> it = segment.entrySet().iterator();
+		Map.Entry<K,V> eldest = it.next();
+		it.remove();
+		return eldest;
+	}
+
+	public synchronized int size() { return probation.size() + protectedSegment.size(); }
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+	public synchronized double getHitRate() {
+		return (hits+misses==0) ? 0.0 : (double)hits/(hits+misses);
+	}
+
+	public synchronized String toString() {
+		return hits+" hits / "+(hits+misses)+" lookups ("+String.format("%.1f", 100*getHitRate())+"%), "+size()+" entries";
+	}
+}
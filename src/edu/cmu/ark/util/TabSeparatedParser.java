@@ -0,0 +1,156 @@
+/*
+    AQMAR Arabic Tagger: Sequence tagger with cost-augmented structured perceptron training
+    Copyright (C) 2012  Behrang Mohit, Nathan Schneider, Rishav Bhowmick, Kemal Oflazer, and Noah A. Smith
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package edu.cmu.ark.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Set;
+
+
+/**
+ * Splits lines of tab-separated UTF-8 text into columns, working directly on the bytes: tabs are
+ * found with a plain scan, and each value is looked up by its bytes in a dictionary for its column,
+ * so that a value seen before in the column is neither decoded nor stored again (values are
+ * interned per column). Columns can be skipped (projection): their values are never decoded,
+ * and are given as {@link #SKIPPED}.
+ *
+ * Otherwise the columns are those of String.split("\\t") on the decoded line; in particular,
+ * trailing empty columns are dropped.
+ *
+ * A parser is not thread-safe.
+ *
+ * @see LineChunkReader#setParser(TabSeparatedParser)
+ */
+public class TabSeparatedParser {
+	/** the value of a skipped column */
+	public static final String SKIPPED = "";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** values beyond this many in a column are decoded every time (so that columns with very
+	 *  many distinct values, like the token column, do not fill memory) */
+	private static final int MAX_DICTIONARY_SIZE = 1<<17;
+
+	private final boolean[] _skip;	// by column
+	private Dictionary[] _dicts = new Dictionary[64];
+	private int[] _ends = new int[64];	// end offset of each column of the current line
+
+	/**
+	 * @param skippedColumns: numbers (0-based) of the columns to skip, or null. The last column of
+	 * a line is never skipped.
+	 */
+	public TabSeparatedParser(Set<Integer> skippedColumns) {
+		int n = 0;
+		if (skippedColumns!=null)
+			for (int c : skippedColumns) n = Math.max(n, c+1);
+		_skip = new boolean[n];
+		if (skippedColumns!=null)
+			for (int c : skippedColumns) _skip[c] = true;
+	}
+
+	/** The columns of the line held in buf[start..end) (without the line break). */
+	public String[] parse(byte[] buf, int start, int end) {
+		if (end==start) return new String[]{""};	// (as String.split())
+		int n = 0;
+		for (int i=start; i<end; i++) {
+			if (buf[i]=='\t') {
+				if (n==_ends.length) _ends = Arrays.copyOf(_ends, 2*n);
+				_ends[n++] = i;
+			}
+		}
+		if (n==_ends.length) _ends = Arrays.copyOf(_ends, 2*n);
+		_ends[n++] = end;
+		while (n>0 && _ends[n-1]==((n>1) ? _ends[n-2]+1 : start))	// drop trailing empty columns
+			n--;
+
+		String[] cols = new String[n];
+		int s = start;
+		for (int c=0; c<n; c++) {
+			int e = _ends[c];
+			if (c<_skip.length && _skip[c] && c<n-1)
+				cols[c] = SKIPPED;
+			else {
+				if (c>=_dicts.length) _dicts = Arrays.copyOf(_dicts, Math.max(c+1, 2*_dicts.length));
+				if (_dicts[c]==null) _dicts[c] = new Dictionary();
+				cols[c] = _dicts[c].intern(buf, s, e);
+			}
+			s = e+1;
+		}
+		return cols;
+	}
+
+	/** Open-addressing hash table from the UTF-8 bytes of values to the decoded values. */
+	private static class Dictionary {
+		private byte[][] _keys = new byte[64][];
+		private String[] _values = new String[64];
+		private int[] _hashes = new int[64];
+		private int _size = 0;
+
+		String intern(byte[] buf, int start, int end) {
+			int h = 1;
+			for (int i=start; i<end; i++)
+				h = 31*h + buf[i];
+			int slot = slot(h, buf, start, end);
+			if (_keys[slot]!=null) return _values[slot];
+
+			String value = new String(buf, start, end-start, UTF8);
+			if (_size<MAX_DICTIONARY_SIZE) {
+				if (2*(_size+1)>_keys.length) {	// keep the load factor at most 1/2
+					grow();
+					slot = slot(h, buf, start, end);
+				}
+				_keys[slot] = Arrays.copyOfRange(buf, start, end);
+				_values[slot] = value;
+				_hashes[slot] = h;
+				_size++;
+			}
+			return value;
+		}
+
+		/** The slot holding the given bytes, or the empty slot where they would go. */
+		private int slot(int h, byte[] buf, int start, int end) {
+			int mask = _keys.length-1;
+			int s = (h ^ (h>>>16)) & mask;
+			while (_keys[s]!=null && !(_hashes[s]==h && equal(_keys[s], buf, start, end)))
+				s = (s+1) & mask;	// linear probing
+			return s;
+		}
+
+		private static boolean equal(byte[] key, byte[] buf, int start, int end) {
+			if (key.length!=end-start) return false;
+			for (int i=0; i<key.length; i++)
+				if (key[i]!=buf[start+i]) return false;
+			return true;
+		}
+
+		private void grow() {
+			byte[][] oldKeys = _keys;
+			String[] oldValues = _values;
+			int[] oldHashes = _hashes;
+			_keys = new byte[2*oldKeys.length][];
+			_values = new String[_keys.length];
+			_hashes = new int[_keys.length];
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i]==null) continue;
+				int s = slot(oldHashes[i], oldKeys[i], 0, oldKeys[i].length);
+				_keys[s] = oldKeys[i];
+				_values[s] = oldValues[i];
+				_hashes[s] = oldHashes[i];
+			}
+		}
+	}
+}